@@ -0,0 +1,68 @@
+import nanoproxy.bench.HotPaths;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Default package side of the benchmarks, see HotPaths. One instance per
+ * benchmark thread, like the per-worker parser in NanoProxy.
+ */
+public class NanoHotPaths implements HotPaths {
+    private final NanoProxy.RequestParser parser = new NanoProxy.RequestParser(16 * 1024, 100);
+    private final NanoProxy.Headers header = new NanoProxy.Headers();
+
+    public NanoHotPaths() {
+        header.add("Cache-Control", "max-age=60");
+        header.add("ETag", "\"5d8c72a5edda8\"");
+        header.add("Last-Modified", "Thu, 01 Jan 2015 00:00:00 GMT");
+        header.add("Server", "nginx");
+    }
+
+    public int parse(InputStream requests) throws IOException {
+        parser.reset(requests);
+        int parsed = 0;
+        while (parser.parse()) {
+            parser.method();
+            parser.uri();
+            parser.version();
+            parser.hasToken("connection", "close");
+            parser.hasToken("transfer-encoding", "chunked");
+            parser.getLong("content-length");
+            parser.get("cache-control");
+            parsed++;
+        }
+        return parsed;
+    }
+
+    public String parameter(InputStream request, String name) throws IOException {
+        parser.reset(request);
+        parser.parse();
+        return parser.parameter(name);
+    }
+
+    public int decodePercent(byte[] src, byte[] dst) {
+        return NanoProxy.RequestParser.decodePercent(src, 0, src.length, dst, 0);
+    }
+
+    public void writeHead(OutputStream out, long contentLength) throws IOException {
+        header.set("Content-Length", Long.toString(contentLength));
+        NanoProxy.writeHead(out, NanoProxy.HTTP_OK, NanoProxy.MIME_HTML, header, null, true, true);
+    }
+
+    public long copy(InputStream in, OutputStream out, byte[] buf) throws IOException {
+        return NanoProxy.transfer(in, out, null, buf);
+    }
+
+    public Closeable start(int port, String engine) throws IOException {
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.engine = engine;
+        final NanoProxy proxy = new NanoProxy(port, config);
+        return new Closeable() {
+            public void close() throws IOException {
+                proxy.stop();
+            }
+        };
+    }
+}
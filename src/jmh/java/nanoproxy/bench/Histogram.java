@@ -0,0 +1,69 @@
+package nanoproxy.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of microsecond latencies, bucketed like the
+ * proxy's own LatencyHistogram: each power of two is split into 32 linear
+ * sub-buckets, so percentiles are good to about 3% at any scale. Safe to
+ * record into from many threads.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (40 - SUB_BITS + 2) * SUB;
+    private static final long MAX = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        long v = Math.min(Math.max(micros, 0), MAX);
+        counts.getAndIncrement(index(v));
+        count.incrementAndGet();
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v))
+            ;
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Upper bound of the bucket holding the given percentile, in
+     * microseconds; 0 if nothing was recorded.
+     */
+    public long percentile(double percent) {
+        long total = count.get();
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percent / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(lowest(i + 1) - 1, max.get());
+        }
+        return max.get();
+    }
+
+    static int index(long v) {
+        if (v < SUB)
+            return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (shift + 1) * SUB + (int) (v >>> shift) - SUB;
+    }
+
+    static long lowest(int index) {
+        int group = index / SUB;
+        int sub = index % SUB;
+        return group == 0 ? sub : (long) (sub + SUB) << (group - 1);
+    }
+}
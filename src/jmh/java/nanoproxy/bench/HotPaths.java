@@ -0,0 +1,56 @@
+package nanoproxy.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The proxy internals the benchmarks drive. NanoProxy lives in the
+ * default package, which JMH cannot generate benchmarks for and named
+ * packages cannot import, so NanoHotPaths implements this on its side and
+ * the benchmarks load it by name.
+ */
+public interface HotPaths {
+
+    /**
+     * Parses the request heads in the stream one after another, reading
+     * the headers the proxy looks at for each. Returns how many it parsed.
+     */
+    int parse(InputStream requests) throws IOException;
+
+    /**
+     * Parses one request head and returns a decoded query parameter.
+     */
+    String parameter(InputStream request, String name) throws IOException;
+
+    /**
+     * Percent-decodes src into dst and returns the decoded length.
+     */
+    int decodePercent(byte[] src, byte[] dst);
+
+    /**
+     * Writes the head of a typical relayed 200 response.
+     */
+    void writeHead(OutputStream out, long contentLength) throws IOException;
+
+    /**
+     * Copies a response body the way the proxy does.
+     */
+    long copy(InputStream in, OutputStream out, byte[] buf) throws IOException;
+
+    /**
+     * Starts a proxy on the given port; closing the result stops it.
+     */
+    Closeable start(int port, String engine) throws IOException;
+
+    class Loader {
+        static HotPaths load() {
+            try {
+                return (HotPaths) Class.forName("NanoHotPaths").getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new IllegalStateException("NanoHotPaths is not on the benchmark classpath", e);
+            }
+        }
+    }
+}
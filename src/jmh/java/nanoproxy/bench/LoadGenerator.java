@@ -0,0 +1,309 @@
+package nanoproxy.bench;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load against a proxy in front of a local StubUpstream, to
+ * find where each engine saturates without any outside host.
+ *
+ * Requests fall due at a fixed rate whether or not earlier ones have been
+ * answered, and are sent over a fixed set of keep-alive connections. Each
+ * latency is measured from when its request fell due, not from when a
+ * connection got free to send it, so a proxy that stalls shows the stall
+ * in the percentiles rather than quietly slowing the client down
+ * (coordinated omission). The uncorrected service time is reported next
+ * to it; the two drifting apart is the sign of saturation. Requests still
+ * unsent when a step ends are not sent, but are recorded as having waited
+ * until then, so an overloaded step ends on time without flattering the
+ * percentiles.
+ *
+ * Requests are replayed in order, and cyclically, from a log with one
+ * request per line and tab-separated fields:
+ *
+ * <pre>
+ * # method  uri  request-body-bytes  response-body-bytes  [header: value ...]
+ * GET       /index.html    0    5120
+ * POST      /api/items     512  128    Content-Type: application/json
+ * </pre>
+ *
+ * Without a log every request is a GET for --bytes bytes. Run it with
+ * gradle load -Pload='--engine nio --rate 1000,2000,4000 --duration 10'.
+ * Options:
+ *
+ * <pre>
+ * --engine blocking|virtual|nio  proxy started in-process (blocking)
+ * --proxy host:port              drive a running proxy instead
+ * --proxy-port n                 port of the in-process proxy (18080)
+ * --upstream-port n              port of the stub upstream (18081)
+ * --latency-us n                 stub delay before each response (0)
+ * --bytes n                      default response body size (128)
+ * --rate r[,r...]                requests per second, one step each (1000)
+ * --duration s                   seconds measured per step (10)
+ * --warmup s                     seconds run, unmeasured, before each step (2)
+ * --connections n                client connections (64)
+ * --log file                     replay this request log
+ * </pre>
+ */
+public class LoadGenerator {
+    private final String proxyHost;
+    private final int proxyPort;
+    private final int connections;
+    private final List<Request> requests;
+
+    LoadGenerator(String proxyHost, int proxyPort, int connections, List<Request> requests) {
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyPort;
+        this.connections = connections;
+        this.requests = requests;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String engine = "blocking";
+        String proxy = null;
+        int proxyPort = 18080;
+        int upstreamPort = 18081;
+        long latencyMicros = 0;
+        int bytes = 128;
+        String rates = "1000";
+        int duration = 10;
+        int warmup = 2;
+        int connections = 64;
+        String log = null;
+        for (int i = 0; i < args.length; i++) {
+            // Every option takes a value, so a last argument on its own is never valid
+            if (i + 1 == args.length)
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            if (args[i].equals("--engine"))
+                engine = args[++i];
+            else if (args[i].equals("--proxy"))
+                proxy = args[++i];
+            else if (args[i].equals("--proxy-port"))
+                proxyPort = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--upstream-port"))
+                upstreamPort = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--latency-us"))
+                latencyMicros = Long.parseLong(args[++i]);
+            else if (args[i].equals("--bytes"))
+                bytes = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--rate"))
+                rates = args[++i];
+            else if (args[i].equals("--duration"))
+                duration = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--warmup"))
+                warmup = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--connections"))
+                connections = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--log"))
+                log = args[++i];
+            else
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+
+        String authority = "127.0.0.1:" + upstreamPort;
+        List<Request> requests = log == null ? defaultRequests(authority, bytes) : readLog(log, authority);
+        StubUpstream upstream = new StubUpstream(upstreamPort, bytes, latencyMicros);
+        Closeable started = null;
+        String proxyHost = "127.0.0.1";
+        if (proxy == null) {
+            started = HotPaths.Loader.load().start(proxyPort, engine);
+        } else {
+            int colon = proxy.lastIndexOf(':');
+            proxyHost = proxy.substring(0, colon);
+            proxyPort = Integer.parseInt(proxy.substring(colon + 1));
+            engine = proxy;
+        }
+        try {
+            LoadGenerator generator = new LoadGenerator(proxyHost, proxyPort, connections, requests);
+            System.out.println(engine + ", " + connections + " connections, " + requests.size()
+                    + " distinct requests, stub latency " + latencyMicros + "us");
+            System.out.println("Latency in ms from when each request fell due; svc is the uncorrected service time.");
+            System.out.println(String.format("%8s %9s %7s %7s %8s %8s %8s %8s %8s %8s %8s",
+                    "rate", "achieved", "errors", "unsent", "p50", "p90", "p99", "p99.9", "max", "svc p50", "svc p99"));
+            for (String r : rates.split(",")) {
+                double rate = Double.parseDouble(r.trim());
+                if (warmup > 0)
+                    generator.run(rate, warmup * 1000000000L);
+                Result result = generator.run(rate, duration * 1000000000L);
+                System.out.println(result.format(rate));
+            }
+        } finally {
+            if (started != null)
+                started.close();
+            upstream.close();
+        }
+    }
+
+    /**
+     * Sends requests due every 1/rate seconds for durationNanos, and waits
+     * for the ones sent to be answered.
+     */
+    Result run(double rate, long durationNanos) throws InterruptedException {
+        final Result result = new Result();
+        final long interval = Math.max(1, (long) (1e9 / rate));
+        final long start = System.nanoTime() + 10000000L;
+        final long end = start + durationNanos;
+        final AtomicLong next = new AtomicLong();
+        result.lastDone.set(start);
+        Thread[] threads = new Thread[connections];
+        for (int c = 0; c < threads.length; c++) {
+            threads[c] = new Thread(new Runnable() {
+                public void run() {
+                    ProxyConnection connection = new ProxyConnection(proxyHost, proxyPort);
+                    long i;
+                    long due;
+                    while ((due = start + (i = next.getAndIncrement()) * interval) < end) {
+                        long now;
+                        while ((now = System.nanoTime()) < due)
+                            LockSupport.parkNanos(due - now);
+                        if (now >= end) {
+                            result.unsent.incrementAndGet();
+                            result.latency.record((now - due) / 1000);
+                            continue;
+                        }
+                        Request request = requests.get((int) (i % requests.size()));
+                        long sent = System.nanoTime();
+                        try {
+                            int status = connection.exchange(request.head, request.bodyBytes, request.head());
+                            if (status >= 500)
+                                result.errors.incrementAndGet();
+                        } catch (Exception e) {
+                            result.errors.incrementAndGet();
+                            try {
+                                connection.close();
+                            } catch (IOException ignored) {
+                            }
+                        }
+                        long done = System.nanoTime();
+                        result.latency.record((done - due) / 1000);
+                        result.service.record((done - sent) / 1000);
+                        long last;
+                        while (done > (last = result.lastDone.get()) && !result.lastDone.compareAndSet(last, done))
+                            ;
+                    }
+                    try {
+                        connection.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }, "load-" + c);
+            threads[c].setDaemon(true);
+            threads[c].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        result.elapsedNanos = Math.max(durationNanos, result.lastDone.get() - start);
+        return result;
+    }
+
+    static List<Request> defaultRequests(String authority, int bytes) {
+        List<Request> requests = new ArrayList<Request>();
+        requests.add(new Request("GET", "/", 0, bytes, new ArrayList<String>(), authority));
+        return requests;
+    }
+
+    static List<Request> readLog(String file, String authority) throws IOException {
+        List<Request> requests = new ArrayList<Request>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int n = 0;
+            while ((line = in.readLine()) != null) {
+                n++;
+                if (line.trim().length() == 0 || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\t");
+                if (fields.length < 4)
+                    throw new IOException(file + ":" + n + ": expected method, uri, request and response bytes");
+                List<String> headers = new ArrayList<String>();
+                for (int i = 4; i < fields.length; i++)
+                    if (fields[i].trim().length() > 0)
+                        headers.add(fields[i].trim());
+                requests.add(new Request(fields[0].trim(), fields[1].trim(), Long.parseLong(fields[2].trim()),
+                        Long.parseLong(fields[3].trim()), headers, authority));
+            }
+        } finally {
+            in.close();
+        }
+        if (requests.isEmpty())
+            throw new IOException(file + " holds no requests");
+        return requests;
+    }
+
+    /**
+     * One request of the log, its head encoded once up front. The uri is
+     * pointed at the stub whatever host it named, and the response size is
+     * passed to the stub in a header.
+     */
+    static class Request {
+        final String method;
+        final byte[] head;
+        final long bodyBytes;
+
+        Request(String method, String uri, long bodyBytes, long responseBytes, List<String> headers,
+                String authority) {
+            this.method = method;
+            this.bodyBytes = bodyBytes;
+            int scheme = uri.indexOf("://");
+            if (scheme >= 0) {
+                int path = uri.indexOf('/', scheme + 3);
+                uri = path < 0 ? "/" : uri.substring(path);
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(method).append(" http://").append(authority).append(uri).append(" HTTP/1.1\r\n");
+            sb.append("Host: ").append(authority).append("\r\n");
+            sb.append(StubUpstream.BYTES_HEADER).append(": ").append(responseBytes).append("\r\n");
+            if (bodyBytes > 0)
+                sb.append("Content-Length: ").append(bodyBytes).append("\r\n");
+            for (String h : headers) {
+                String name = h.toLowerCase();
+                if (!name.startsWith("host:") && !name.startsWith("content-length:")
+                        && !name.startsWith("transfer-encoding:") && !name.startsWith("connection:"))
+                    sb.append(h).append("\r\n");
+            }
+            sb.append("\r\n");
+            try {
+                head = sb.toString().getBytes("ISO-8859-1");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        boolean head() {
+            return method.equalsIgnoreCase("HEAD");
+        }
+    }
+
+    /**
+     * What one step measured.
+     */
+    static class Result {
+        final Histogram latency = new Histogram();
+        final Histogram service = new Histogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong unsent = new AtomicLong();
+        final AtomicLong lastDone = new AtomicLong();
+        long elapsedNanos;
+
+        double throughput() {
+            return service.count() * 1e9 / elapsedNanos;
+        }
+
+        String format(double rate) {
+            double achieved = throughput();
+            return String.format("%8.0f %9.1f %7d %7d %8.2f %8.2f %8.2f %8.2f %8.2f %8.2f %8.2f%s",
+                    rate, achieved, errors.get(), unsent.get(),
+                    latency.percentile(50) / 1e3, latency.percentile(90) / 1e3, latency.percentile(99) / 1e3,
+                    latency.percentile(99.9) / 1e3, latency.max() / 1e3,
+                    service.percentile(50) / 1e3, service.percentile(99) / 1e3,
+                    achieved < rate * 0.95 ? "  saturated" : "");
+        }
+    }
+}
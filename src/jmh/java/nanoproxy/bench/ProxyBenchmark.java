@@ -0,0 +1,90 @@
+package nanoproxy.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end: clients on keep-alive connections fetching through a proxy
+ * on 18080 from the in-process StubUpstream on 18081. Throughput and the
+ * sampled latency distribution come out of the same run; use -t to vary
+ * the number of concurrent clients, and -p engine=virtual on Java 21 and
+ * later to compare virtual threads against the pool. The nio engine closes
+ * the connection after every reply, so -p engine=nio measures a reconnect
+ * per request as well and doesn't compare with the other two.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class ProxyBenchmark {
+    static final int PROXY_PORT = 18080;
+    static final int UPSTREAM_PORT = 18081;
+
+    @Param({"blocking"})
+    String engine;
+
+    @Param({"128", "16384"})
+    int bodyBytes;
+
+    private StubUpstream upstream;
+    private Closeable proxy;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        upstream = new StubUpstream(UPSTREAM_PORT, bodyBytes);
+        proxy = HotPaths.Loader.load().start(PROXY_PORT, engine);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        proxy.close();
+        upstream.close();
+    }
+
+    @Benchmark
+    public int get(Client client) throws IOException {
+        return client.get();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static final byte[] REQUEST = ("GET http://127.0.0.1:" + UPSTREAM_PORT + "/ HTTP/1.1\r\n"
+                + "Host: 127.0.0.1:" + UPSTREAM_PORT + "\r\n"
+                + "\r\n").getBytes();
+
+        private final ProxyConnection connection = new ProxyConnection("127.0.0.1", PROXY_PORT);
+
+        /**
+         * Sends one request and reads the whole response, reconnecting
+         * whenever the proxy closes the connection after a reply.
+         */
+        int get() throws IOException {
+            connection.exchange(REQUEST, 0, false);
+            return (int) connection.bodyRead();
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            connection.close();
+        }
+    }
+}
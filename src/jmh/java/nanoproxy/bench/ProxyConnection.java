@@ -0,0 +1,98 @@
+package nanoproxy.bench;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * One keep-alive client connection to the proxy, opened on first use and
+ * again whenever the proxy closes it after a reply.
+ */
+public class ProxyConnection implements Closeable {
+    private static final byte[] FILLER = new byte[16 * 1024];
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private final byte[] buf = new byte[16 * 1024];
+    private final StringBuilder line = new StringBuilder();
+    private long bodyRead;
+
+    public ProxyConnection(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Sends a request head followed by bodyBytes of filler, reads the whole
+     * response and returns its status code. Responses to HEAD requests are
+     * read without a body.
+     */
+    public int exchange(byte[] head, long bodyBytes, boolean headRequest) throws IOException {
+        if (socket == null) {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), buf.length);
+            out = socket.getOutputStream();
+        }
+        out.write(head);
+        for (long left = bodyBytes; left > 0; left -= FILLER.length)
+            out.write(FILLER, 0, (int) Math.min(FILLER.length, left));
+        out.flush();
+
+        readLine();
+        int sp = line.indexOf(" ");
+        if (sp < 0 || line.length() < sp + 4)
+            throw new IOException("Malformed status line: " + line);
+        int status = Integer.parseInt(line.substring(sp + 1, sp + 4));
+        long length = -1;
+        boolean close = false;
+        while (readLine() > 0) {
+            String l = line.toString().toLowerCase();
+            if (l.startsWith("content-length:"))
+                length = Long.parseLong(l.substring(15).trim());
+            else if (l.startsWith("connection:"))
+                close = l.indexOf("close") >= 0;
+        }
+        if (headRequest || status == 204 || status == 304)
+            length = 0;
+        long read = 0;
+        int n;
+        while ((length < 0 || read < length)
+                && (n = in.read(buf, 0, length < 0 ? buf.length : (int) Math.min(buf.length, length - read))) > 0)
+            read += n;
+        bodyRead = read;
+        if (close || length < 0)
+            close();
+        return status;
+    }
+
+    /**
+     * Body bytes of the last response.
+     */
+    public long bodyRead() {
+        return bodyRead;
+    }
+
+    private int readLine() throws IOException {
+        line.setLength(0);
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n')
+            if (c != '\r')
+                line.append((char) c);
+        if (c < 0)
+            throw new IOException("Proxy closed the connection mid-response");
+        return line.length();
+    }
+
+    public void close() throws IOException {
+        if (socket != null)
+            socket.close();
+        socket = null;
+    }
+}
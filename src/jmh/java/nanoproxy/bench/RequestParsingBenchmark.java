@@ -0,0 +1,93 @@
+package nanoproxy.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request head parsing: the header loop, query parameter lookup and
+ * percent decoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+
+    static final String MINIMAL = "GET http://localhost:12306/ HTTP/1.1\r\n"
+            + "Host: localhost:12306\r\n"
+            + "\r\n";
+
+    static final String BROWSER = "GET http://example.com/search?q=nano%20proxy&lang=en&page=2 HTTP/1.1\r\n"
+            + "Host: example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Referer: http://example.com/\r\n"
+            + "Cookie: session=3b1f0e1c9a7d4c2e8f6a5b4c3d2e1f0a; theme=dark\r\n"
+            + "Proxy-Connection: keep-alive\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "Cache-Control: max-age=0\r\n"
+            + "\r\n";
+
+    @Param({"minimal", "browser"})
+    String request;
+
+    private HotPaths paths;
+    private byte[] head;
+    private byte[] pipelined;
+    private byte[] encoded;
+    private byte[] decoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        paths = HotPaths.Loader.load();
+        head = ("minimal".equals(request) ? MINIMAL : BROWSER).getBytes("ISO-8859-1");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 16; i++)
+            sb.append(new String(head, "ISO-8859-1"));
+        pipelined = sb.toString().getBytes("ISO-8859-1");
+        encoded = "/files/r%C3%A9sum%C3%A9%20final%20(2).pdf?name=%E4%BD%A0%E5%A5%BD".getBytes("ISO-8859-1");
+        decoded = new byte[encoded.length];
+    }
+
+    @Benchmark
+    public int parseHead() throws IOException {
+        return paths.parse(new ByteArrayInputStream(head));
+    }
+
+    /**
+     * Sixteen requests sent back to back on one connection.
+     */
+    @Benchmark
+    @OperationsPerInvocation(16)
+    public int parsePipelined() throws IOException {
+        return paths.parse(new ByteArrayInputStream(pipelined));
+    }
+
+    @Benchmark
+    public String queryParameter() throws IOException {
+        return paths.parameter(new ByteArrayInputStream(head), "page");
+    }
+
+    @Benchmark
+    public int decodePercent() {
+        return paths.decodePercent(encoded, decoded);
+    }
+}
@@ -0,0 +1,76 @@
+package nanoproxy.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response head serialization and body copy, written into a sink that
+ * discards the bytes so only the proxy's own work is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseWritingBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    int bodyBytes;
+
+    private HotPaths paths;
+    private byte[] body;
+    private byte[] buf;
+    private Sink sink;
+
+    @Setup
+    public void setUp() {
+        paths = HotPaths.Loader.load();
+        body = new byte[bodyBytes];
+        buf = new byte[16 * 1024];
+        sink = new Sink();
+    }
+
+    @Benchmark
+    public long writeHead() throws IOException {
+        paths.writeHead(sink, bodyBytes);
+        return sink.written;
+    }
+
+    @Benchmark
+    public long copyBody() throws IOException {
+        return paths.copy(new ByteArrayInputStream(body), sink, buf);
+    }
+
+    @Benchmark
+    public long writeResponse() throws IOException {
+        paths.writeHead(sink, bodyBytes);
+        return paths.copy(new ByteArrayInputStream(body), sink, buf);
+    }
+
+    static class Sink extends OutputStream {
+        long written;
+
+        public void write(int b) {
+            written++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            written += len;
+        }
+    }
+}
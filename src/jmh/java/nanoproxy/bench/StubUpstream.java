@@ -0,0 +1,167 @@
+package nanoproxy.bench;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal in-process HTTP/1.1 origin that answers every request with the
+ * same body, after an optional fixed delay. A request can ask for another
+ * body size with an X-Stub-Bytes header. Connections are kept alive unless
+ * the request says close, so the numbers measure the proxy rather than
+ * the upstream.
+ */
+public class StubUpstream implements Closeable, Runnable {
+    public static final String BYTES_HEADER = "X-Stub-Bytes";
+
+    private static final byte[] FILLER = new byte[16 * 1024];
+
+    static {
+        Arrays.fill(FILLER, (byte) 'x');
+    }
+
+    private final ServerSocket server;
+    private final int bodyBytes;
+    private final long latencyMicros;
+    private final byte[] response;
+    private final byte[] closingResponse;
+
+    public StubUpstream(int port, int bodyBytes) throws IOException {
+        this(port, bodyBytes, 0);
+    }
+
+    public StubUpstream(int port, int bodyBytes, long latencyMicros) throws IOException {
+        this.bodyBytes = bodyBytes;
+        this.latencyMicros = latencyMicros;
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress("127.0.0.1", port), 1024);
+        byte[] body = new byte[bodyBytes];
+        Arrays.fill(body, (byte) 'x');
+        response = concat(head(bodyBytes, "keep-alive"), body);
+        closingResponse = concat(head(bodyBytes, "close"), body);
+        Thread t = new Thread(this, "stub-upstream");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void run() {
+        while (!server.isClosed()) {
+            try {
+                final Socket s = server.accept();
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        serve(s);
+                    }
+                }, "stub-upstream-conn");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException ioe) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        try {
+            s.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            Head head = new Head();
+            while (readHead(in, head)) {
+                for (long left = head.contentLength; left > 0; ) {
+                    long skipped = in.skip(left);
+                    if (skipped <= 0)
+                        return;
+                    left -= skipped;
+                }
+                if (latencyMicros > 0)
+                    TimeUnit.MICROSECONDS.sleep(latencyMicros);
+                if (head.bodyBytes < 0 || head.bodyBytes == bodyBytes) {
+                    out.write(head.close ? closingResponse : response);
+                } else {
+                    out.write(head(head.bodyBytes, head.close ? "close" : "keep-alive"));
+                    for (long left = head.bodyBytes; left > 0; left -= FILLER.length)
+                        out.write(FILLER, 0, (int) Math.min(FILLER.length, left));
+                }
+                out.flush();
+                if (head.close)
+                    break;
+            }
+        } catch (IOException ignored) {
+        } catch (InterruptedException ignored) {
+        } finally {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * What the stub needs from a request head.
+     */
+    private static class Head {
+        boolean close;
+        long contentLength;
+        long bodyBytes;
+    }
+
+    /**
+     * Reads one request head into head. Returns false at end of stream.
+     * Request bodies must be framed by Content-Length.
+     */
+    private static boolean readHead(InputStream in, Head head) throws IOException {
+        StringBuilder line = new StringBuilder();
+        head.close = false;
+        head.contentLength = 0;
+        head.bodyBytes = -1;
+        boolean first = true;
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                if (line.length() == 0 && !first)
+                    return true;
+                String l = line.toString().toLowerCase();
+                if (first && l.endsWith("http/1.0"))
+                    head.close = true;
+                if (l.startsWith("connection:"))
+                    head.close = l.indexOf("close") >= 0;
+                else if (l.startsWith("content-length:"))
+                    head.contentLength = Long.parseLong(l.substring(15).trim());
+                else if (l.startsWith("x-stub-bytes:"))
+                    head.bodyBytes = Long.parseLong(l.substring(13).trim());
+                first = false;
+                line.setLength(0);
+            } else if (c != '\r')
+                line.append((char) c);
+        }
+        return false;
+    }
+
+    private static byte[] head(long length, String connection) throws IOException {
+        return ("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + "Connection: " + connection + "\r\n"
+                + "\r\n").getBytes("ISO-8859-1");
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] r = new byte[a.length + b.length];
+        System.arraycopy(a, 0, r, 0, a.length);
+        System.arraycopy(b, 0, r, a.length, b.length);
+        return r;
+    }
+
+    public void close() throws IOException {
+        server.close();
+    }
+}
@@ -2,9 +2,20 @@
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
- * A simple, tiny, nicely embeddable HTTP 1.0 server in Java
+ * A simple, tiny, nicely embeddable HTTP 1.1 proxy in Java
  * <p/>
  * <p/>
  * <p><b>Features + limitations: </b><ul>
@@ -14,8 +25,14 @@ import java.net.*;
  * <li> No fixed config files, logging, authorization etc. (Implement yourself if you need them.) </li>
  * <li> Supports parameter parsing of GET and POST methods </li>
  * <li> Supports both dynamic content and file serving </li>
- * <li> Never caches anything </li>
- * <li> Doesn't limit bandwidth, request time or simultaneous connections </li>
+ * <li> Optionally caches GET responses in memory, honoring Cache-Control, Expires and Vary </li>
+ * <li> Large responses can go to an on-disk cache tier that survives restarts </li>
+ * <li> Upstream exchanges are bounded by deadlines; idempotent ones are retried or hedged </li>
+ * <li> Optional per-client request rate, concurrency and bandwidth limits </li>
+ * <li> Sessions run on a bounded worker pool; overload is answered with 503 </li>
+ * <li> Optional non-blocking selector engine for many concurrent slow clients </li>
+ * <li> Upstream connections are kept alive and pooled per host </li>
+ * <li> Client connections are kept alive, pipelined requests are answered in order </li>
  * <li> Default code serves files and shows all HTTP parameters and headers</li>
  * <li> Contains a built-in list of most common mime types </li>
  * <li> All header names are converted lowercase so they don't vary between browsers/clients </li>
@@ -32,327 +49,6191 @@ import java.net.*;
  * (Modified BSD licence)
  */
 public class NanoProxy {
-    private final ServerSocket serverSocket;
+    private ServerSocket[] listeners;
+    private ExecutorService workers;
+    private final Set<HTTPSession> sessions =
+            Collections.newSetFromMap(new ConcurrentHashMap<HTTPSession, Boolean>());
+    private NioEngine nioEngine;
+    private UpstreamPool upstreamPool;
+    private ResponseCache responseCache;
+    private DiskCache diskCache;
+    private Coalescer coalescer;
+    private Compressor compressor;
+    private Map<String, BackendPool> backendPools;
+    private HealthChecker healthChecker;
+    private int firstByteTimeoutMillis;
+    private long totalTimeoutMillis;
+    private int upstreamRetries;
+    private long retryBackoffMillis;
+    private RetryBudget retryBudget;
+    private Hedger hedger;
+    private ClientLimiter clientLimiter;
+    private BufferPool directBuffers;
+    private BufferPool heapBuffers;
+    private int keepAliveMillis;
+    private int maxKeepAliveRequests;
+    private ThreadLocal<RequestParser> parsers;
+    private String metricsPath;
+    private int[] connectPorts;
+    private TunnelPump tunnels;
+    final Metrics metrics = new Metrics();
     private boolean runThread;
+    private volatile boolean draining;
+    private Thread[] acceptors;
+    private SocketTuning tuning;
 
-    public class Response {
+    /**
+     * Startup options. The defaults are what {@link #NanoProxy(int)} uses.
+     */
+    public static class Config {
+        /**
+         * "blocking" runs one HTTPSession per connection on the worker pool,
+         * "virtual" runs each one on its own virtual thread (Java 21+),
+         * "nio" multiplexes all connections over a few selector threads.
+         * The nio engine relays a single request per client connection over
+         * a fresh upstream connection, then closes both; it never parses the
+         * response. It refuses to start with the response caches,
+         * compression, backend pools, client limits or hedging, and it
+         * does not coalesce, pool upstream connections or retry.
+         */
+        public String engine = ENGINE_BLOCKING;
+        /**
+         * Selector threads used by the nio engine.
+         */
+        public int eventLoops = Runtime.getRuntime().availableProcessors();
+        /**
+         * Worker threads kept alive even when idle.
+         */
+        public int minWorkers = 8;
+        /**
+         * Upper bound on worker threads. Equal to minWorkers gives a fixed pool.
+         */
+        public int maxWorkers = 64;
+        /**
+         * Accepted connections allowed to wait for a worker before new ones
+         * get a 503; 0 hands each one straight to an idle worker or refuses it.
+         */
+        public int acceptQueue = 256;
+        /**
+         * Bind with SO_REUSEPORT (Java 9+, Linux and the BSDs) so that a new
+         * instance can listen on the same port while this one drains.
+         */
+        public boolean reusePort = false;
+        /**
+         * Listening sockets, each with its own accept thread, or accept
+         * loop under the nio engine. More than one are all bound with
+         * SO_REUSEPORT, and the kernel spreads new connections over them.
+         */
+        public int acceptors = 1;
+        /**
+         * Connections the kernel queues on each listening socket until
+         * they are accepted.
+         */
+        public int acceptBacklog = 1024;
+        /**
+         * Options for client and upstream sockets alike. Buffer sizes of 0
+         * leave the kernel's defaults, which it tunes on its own.
+         */
+        public boolean tcpNoDelay = true;
+        public boolean tcpKeepAlive = false;
+        public int socketSendBufferBytes = 0;
+        public int socketReceiveBufferBytes = 0;
+        /**
+         * How long a worker above minWorkers may stay idle before it exits.
+         */
+        public long workerIdleMillis = 60000;
+        /**
+         * Keep-alive connections lent out per upstream host:port at any time.
+         */
+        public int upstreamMaxPerHost = 32;
+        /**
+         * How long a request waits for one of those connections to come
+         * free before it fails.
+         */
+        public long upstreamAcquireTimeoutMillis = 30000;
+        /**
+         * Idle pooled upstream connections are closed after this long.
+         */
+        public long upstreamIdleMillis = 30000;
+        /**
+         * How long opening an upstream connection may take.
+         */
+        public int upstreamConnectTimeoutMillis = 5000;
+        /**
+         * How long an upstream may take to start its reply once the request
+         * is sent; also the longest a reply body may stall between reads.
+         */
+        public int upstreamFirstByteTimeoutMillis = 30000;
+        /**
+         * Deadline for a whole upstream exchange, the wait for a pooled
+         * connection, retries and body included; 0 for none.
+         */
+        public long upstreamTotalTimeoutMillis = 0;
+        /**
+         * Times a failed idempotent request is sent again, with jittered
+         * exponential backoff starting at retryBackoffMillis.
+         */
+        public int upstreamRetries = 2;
+        public long retryBackoffMillis = 25;
+        /**
+         * Retries and hedges together may add at most this percentage to
+         * upstream requests, beyond a floor of ten per second, so retries
+         * can't pile onto an upstream that is already failing.
+         */
+        public int retryBudgetPercent = 20;
+        /**
+         * Send a second copy of an idempotent request whose reply hasn't
+         * started after hedgePercentile of recent first-byte latencies, and
+         * use whichever answers first.
+         */
+        public boolean hedgeRequests = false;
+        public double hedgePercentile = 95;
+        /**
+         * How long a client connection may sit idle between requests.
+         */
+        public int keepAliveMillis = 15000;
+        /**
+         * Requests answered on one client connection before it is closed.
+         */
+        public int maxKeepAliveRequests = 100;
+        /**
+         * Request line plus headers must fit in this many bytes, or the
+         * request is refused with 431.
+         */
+        public int maxRequestHeadBytes = 16 * 1024;
+        /**
+         * Header fields accepted per request.
+         */
+        public int maxRequestHeaders = 100;
+        /**
+         * Requests per second each client address may send, with bursts of
+         * up to rateLimitBurst; 0 turns the limit off. Requests over it are
+         * answered with 429.
+         */
+        public double rateLimitPerSecond = 0;
+        public int rateLimitBurst = 20;
+        /**
+         * Requests one client address may have in progress at once across
+         * all its connections; 0 for no limit. Requests over it are answered
+         * with 503.
+         */
+        public int maxInFlightPerClient = 0;
+        /**
+         * Response bytes per second sent to each client address, bursting to
+         * one second's worth; 0 for no limit.
+         */
+        public long clientBytesPerSecond = 0;
+        /**
+         * Memory shared by cached GET responses; 0 turns the cache off.
+         */
+        public long cacheMaxBytes = 0;
+        /**
+         * Responses larger than this are never cached.
+         */
+        public long cacheMaxEntryBytes = 1024 * 1024;
+        /**
+         * Directory for the on-disk cache tier; null turns it off.
+         */
+        public File diskCacheDir = null;
+        /**
+         * Disk quota for the on-disk tier.
+         */
+        public long diskCacheMaxBytes = 1024L * 1024 * 1024;
+        /**
+         * Size at which the on-disk tier starts a new segment file.
+         */
+        public long diskCacheSegmentBytes = 64L * 1024 * 1024;
+        /**
+         * Concurrent GETs for the same URI share one upstream request, as
+         * long as its response is public and doesn't depend on cookies the
+         * requests carry.
+         */
+        public boolean coalesceRequests = true;
+        /**
+         * How long a coalesced request waits on its leader before going
+         * upstream itself.
+         */
+        public long coalesceTimeoutMillis = 5000;
+        /**
+         * Only responses up to this size are shared between coalesced requests.
+         */
+        public long coalesceMaxBytes = 1024 * 1024;
+        /**
+         * Gzip responses of compressibleTypes for clients that accept it,
+         * unless the upstream already encoded them.
+         */
+        public boolean compressResponses = false;
+        /**
+         * Responses known to be smaller than this are sent as they are.
+         */
+        public long compressMinBytes = 1024;
+        /**
+         * Content types worth compressing, without parameters.
+         */
+        public String[] compressibleTypes = {"text/html", "text/plain", "text/css", "text/xml",
+                "application/javascript", "application/json", "application/xml"};
+        /**
+         * Deflate level, 1 (fastest) to 9 (smallest).
+         */
+        public int compressLevel = 6;
+        /**
+         * Keep the gzipped variant of memory-cached responses next to the
+         * original, so each one is only compressed once.
+         */
+        public boolean cacheCompressed = true;
+        /**
+         * Requests for this origin-form path sent straight to the proxy
+         * from the local host are answered with metrics in the Prometheus
+         * text format; null turns the endpoint off. Forward-proxied requests
+         * carry absolute URIs, and in reverse-proxy mode a request whose Host
+         * names a backend pool goes to that pool, so the path never shadows
+         * an upstream's own.
+         */
+        public String metricsPath = "/metrics";
+        /**
+         * Ports CONNECT may open tunnels to; null allows any. Limited to
+         * TLS by default so the proxy can't be used to relay mail and such.
+         */
+        public int[] connectPorts = {443};
+        /**
+         * CONNECT tunnels with no traffic either way for this long are closed.
+         */
+        public long tunnelIdleMillis = 5 * 60 * 1000;
+        /**
+         * Idle socket buffers kept for reuse, per pool (direct buffers for
+         * channel I/O, heap buffers for stream copies).
+         */
+        public long bufferPoolMaxBytes = 32 * 1024 * 1024;
+        /**
+         * Remember where every pooled buffer was taken, so buffers that are
+         * never given back show up in getLeakedBuffers(); for tests, as it
+         * costs a stack trace per lease.
+         */
+        public boolean bufferLeakDetection = false;
+        /**
+         * Reverse-proxy mode: virtual host names mapped to their backend
+         * nodes as "host:port". Requests for one of these hosts, by
+         * absolute URI or by Host header, go to a node picked by balancer
+         * rather than to the host they name. Blocking and virtual engines
+         * only; null turns the mode off.
+         */
+        public Map<String, String[]> backends = null;
+        /**
+         * How a node is picked: "round-robin", "least-outstanding" or "p2c"
+         * (the less busy of two picked at random).
+         */
+        public String balancer = BALANCE_P2C;
+        /**
+         * Path every node is sent a GET for each healthCheckMillis; nodes
+         * failing it twice in a row take no traffic until one succeeds.
+         * Null leaves health to the passive checks alone.
+         */
+        public String healthCheckPath = null;
+        /**
+         * Interval of the health probes and of the latency outlier check.
+         */
+        public long healthCheckMillis = 5000;
+        /**
+         * Consecutive failures (connection errors or 5xx) after which a node
+         * is ejected.
+         */
+        public int ejectAfterErrors = 5;
+        /**
+         * A node whose average latency is this many times that of the rest
+         * of its pool is ejected; 0 turns the latency check off.
+         */
+        public double ejectSlowerThan = 3;
+        /**
+         * How long a first ejection lasts; each repeat adds as much again.
+         */
+        public long ejectMillis = 30000;
+    }
 
-        public Response(String status, String mimeType, InputStream data) {
+    /**
+     * Thrown when an upstream misses one of its deadlines; answered with 504.
+     */
+    static class GatewayTimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        GatewayTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Read access to headers by case-insensitive name.
+     */
+    public interface HeaderSource {
+        /**
+         * Returns the first value for the given name, or null.
+         */
+        String get(String name);
+
+        /**
+         * Writes the end-to-end headers as they would go upstream: neither
+         * hop-by-hop ones nor those the proxy frames itself, in their
+         * original order and spelling.
+         */
+        void forward(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Headers that describe one connection rather than the message (RFC 7230
+     * section 6.1) and so never cross the proxy in either direction, along
+     * with any header a Connection header names.
+     */
+    static final String[] HOP_BY_HOP = {"Connection", "Proxy-Connection", "Keep-Alive", "TE", "Trailer",
+            "Upgrade", "Proxy-Authorization", "Proxy-Authenticate"};
+
+    /**
+     * Request headers rewritten from the framing the proxy uses upstream.
+     */
+    static final String[] REFRAMED = {"Host", "Content-Length", "Transfer-Encoding", "Expect"};
+
+    static boolean isListed(String name, String[] names) {
+        for (int i = 0; i < names.length; i++)
+            if (names[i].equalsIgnoreCase(name))
+                return true;
+        return false;
+    }
+
+    /**
+     * Thrown for requests that can't be parsed; carries the status to answer with.
+     */
+    static class BadRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final String status;
+
+        BadRequestException(String status, String message) {
+            super(message);
             this.status = status;
-            this.mimeType = mimeType;
-            this.data = data;
         }
+    }
+
+    /**
+     * Byte-level HTTP request head parser over a reusable buffer. Header
+     * names and values are kept as offsets into the buffer and only turned
+     * into Strings when looked up, with case-insensitive matching done on
+     * the raw bytes. After parse() the parser is itself the input stream
+     * for the body, serving the bytes already buffered first, so pipelined
+     * requests are never lost. Heads that don't fit the buffer are refused.
+     */
+    static class RequestParser extends InputStream implements HeaderSource {
+        private static final String[] METHODS = {"GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "PATCH",
+                "CONNECT", "TRACE"};
+        private static final String HTTP_1_0 = "HTTP/1.0";
+        private static final String HTTP_1_1 = "HTTP/1.1";
+
+        private final byte[] buf;
+        private final int maxHeaders;
+        private final int[] nameStart;
+        private final int[] nameEnd;
+        private final int[] valueStart;
+        private final int[] valueEnd;
+        private final byte[] scratch;
+        private InputStream in;
+        private int pos;
+        private int limit;
+        private int headers;
+        private int methodStart, methodEnd, uriStart, uriEnd, versionStart, versionEnd;
+        private String method;
+        private String uri;
+        private String version;
+        private long startNanos;
+        private long bytesRead;
+
+        RequestParser(int maxHeadBytes, int maxHeaders) {
+            buf = new byte[maxHeadBytes];
+            scratch = new byte[maxHeadBytes];
+            this.maxHeaders = maxHeaders;
+            nameStart = new int[maxHeaders];
+            nameEnd = new int[maxHeaders];
+            valueStart = new int[maxHeaders];
+            valueEnd = new int[maxHeaders];
+        }
+
+        /**
+         * Starts on a new connection, forgetting anything buffered.
+         */
+        void reset(InputStream in) {
+            this.in = in;
+            pos = limit = 0;
+        }
+
+        /**
+         * Reads the next request head. Returns false if the connection is
+         * closed before one starts.
+         */
+        boolean parse() throws IOException {
+            method = uri = version = null;
+            headers = 0;
+
+            // Skip blank lines between requests, then line the head up at 0
+            while (true) {
+                while (pos < limit && (buf[pos] == '\r' || buf[pos] == '\n'))
+                    pos++;
+                if (pos < limit)
+                    break;
+                pos = limit = 0;
+                if (!fill())
+                    return false;
+            }
+            startNanos = System.nanoTime();
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+
+            int end;
+            int scanned = 0;
+            while ((end = headEnd(scanned)) < 0) {
+                scanned = Math.max(0, limit - 3);
+                if (limit == buf.length)
+                    throw new BadRequestException(HTTP_HEADERTOOLARGE, "BAD REQUEST: Request head too large.");
+                if (!fill())
+                    throw new EOFException("Connection closed inside the request head");
+            }
+
+            int p = parseRequestLine();
+            while (p < end) {
+                int eol = lineEnd(p, end);
+                if (eol > p) {
+                    int colon = p;
+                    while (colon < eol && buf[colon] != ':')
+                        colon++;
+                    if (colon == eol || colon == p)
+                        throw new BadRequestException(HTTP_BADREQUEST, "BAD REQUEST: Malformed header line.");
+                    if (headers == maxHeaders)
+                        throw new BadRequestException(HTTP_HEADERTOOLARGE, "BAD REQUEST: Too many headers.");
+                    int ns = p, ne = colon, vs = colon + 1, ve = eol;
+                    while (ne > ns && isSpace(buf[ne - 1])) ne--;
+                    while (vs < ve && isSpace(buf[vs])) vs++;
+                    while (ve > vs && isSpace(buf[ve - 1])) ve--;
+                    nameStart[headers] = ns;
+                    nameEnd[headers] = ne;
+                    valueStart[headers] = vs;
+                    valueEnd[headers] = ve;
+                    headers++;
+                }
+                p = next(eol, end);
+            }
+            pos = end;
+            return true;
+        }
+
+        private int parseRequestLine() throws BadRequestException {
+            int eol = lineEnd(0, limit);
+            int p = 0;
+            methodStart = p;
+            while (p < eol && buf[p] != ' ') p++;
+            methodEnd = p;
+            while (p < eol && buf[p] == ' ') p++;
+            uriStart = p;
+            while (p < eol && buf[p] != ' ') p++;
+            uriEnd = p;
+            while (p < eol && buf[p] == ' ') p++;
+            versionStart = p;
+            while (p < eol && buf[p] != ' ') p++;
+            versionEnd = p;
+            if (methodEnd == methodStart)
+                throw new BadRequestException(HTTP_BADREQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+            if (uriEnd == uriStart)
+                throw new BadRequestException(HTTP_BADREQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+            return next(eol, limit);
+        }
+
+        private boolean fill() throws IOException {
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0)
+                return false;
+            limit += read;
+            bytesRead += read;
+            return true;
+        }
+
+        /**
+         * System.nanoTime() when the first byte of the current head was at hand.
+         */
+        long startNanos() {
+            return startNanos;
+        }
+
+        /**
+         * Hands over the bytes read past the current head, e.g. to a tunnel.
+         */
+        byte[] drainBuffered() {
+            byte[] rest = Arrays.copyOfRange(buf, pos, limit);
+            pos = limit;
+            return rest;
+        }
+
+        /**
+         * Bytes read off the connection since the last call.
+         */
+        long takeBytesRead() {
+            long n = bytesRead;
+            bytesRead = 0;
+            return n;
+        }
+
+        /**
+         * Offset just past the blank line ending the head, or -1.
+         */
+        private int headEnd(int from) {
+            for (int i = from; i < limit; i++) {
+                if (buf[i] != '\n')
+                    continue;
+                if (i + 1 < limit && buf[i + 1] == '\n')
+                    return i + 2;
+                if (i + 2 < limit && buf[i + 1] == '\r' && buf[i + 2] == '\n')
+                    return i + 3;
+            }
+            return -1;
+        }
+
+        /**
+         * Offset of the line terminator (CR or LF) at or after p.
+         */
+        private int lineEnd(int p, int end) {
+            while (p < end && buf[p] != '\r' && buf[p] != '\n')
+                p++;
+            return p;
+        }
+
+        private int next(int eol, int end) {
+            if (eol < end && buf[eol] == '\r')
+                eol++;
+            return eol < end ? eol + 1 : eol;
+        }
+
+        private static boolean isSpace(byte b) {
+            return b == ' ' || b == '\t';
+        }
+
+        /**
+         * The method, as a shared constant for the common ones.
+         */
+        String method() {
+            if (method == null) {
+                for (int i = 0; i < METHODS.length && method == null; i++)
+                    if (equalsIgnoreCase(methodStart, methodEnd, METHODS[i]))
+                        method = METHODS[i];
+                if (method == null)
+                    method = string(methodStart, methodEnd);
+            }
+            return method;
+        }
+
+        /**
+         * The request target exactly as sent, query string included.
+         */
+        String uri() {
+            if (uri == null)
+                uri = string(uriStart, uriEnd);
+            return uri;
+        }
+
+        /**
+         * The protocol version; HTTP/1.0 when the client sent none.
+         */
+        String version() {
+            if (version == null) {
+                if (equalsIgnoreCase(versionStart, versionEnd, HTTP_1_1))
+                    version = HTTP_1_1;
+                else if (versionEnd == versionStart || equalsIgnoreCase(versionStart, versionEnd, HTTP_1_0))
+                    version = HTTP_1_0;
+                else
+                    version = string(versionStart, versionEnd);
+            }
+            return version;
+        }
+
+        public String get(String name) {
+            int i = indexOf(name);
+            return i < 0 ? null : string(valueStart[i], valueEnd[i]);
+        }
+
+        /**
+         * True if the named header is present and lists the given token,
+         * compared without allocating.
+         */
+        boolean hasToken(String name, String token) {
+            for (int i = 0; i < headers; i++) {
+                if (!equalsIgnoreCase(nameStart[i], nameEnd[i], name))
+                    continue;
+                int p = valueStart[i];
+                while (p < valueEnd[i]) {
+                    int q = p;
+                    while (q < valueEnd[i] && buf[q] != ',') q++;
+                    int s = p, e = q;
+                    while (s < e && isSpace(buf[s])) s++;
+                    while (e > s && isSpace(buf[e - 1])) e--;
+                    if (equalsIgnoreCase(s, e, token))
+                        return true;
+                    p = q + 1;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Copies the end-to-end headers straight out of the buffer.
+         */
+        public void forward(OutputStream out) throws IOException {
+            for (int i = 0; i < headers; i++) {
+                if (isListed(i, HOP_BY_HOP) || isListed(i, REFRAMED) || isNominated(i))
+                    continue;
+                out.write(buf, nameStart[i], nameEnd[i] - nameStart[i]);
+                out.write(':');
+                out.write(' ');
+                out.write(buf, valueStart[i], valueEnd[i] - valueStart[i]);
+                out.write('\r');
+                out.write('\n');
+            }
+        }
+
+        private boolean isListed(int i, String[] names) {
+            for (int n = 0; n < names.length; n++)
+                if (equalsIgnoreCase(nameStart[i], nameEnd[i], names[n]))
+                    return true;
+            return false;
+        }
+
+        /**
+         * True if a Connection header lists the name of header i.
+         */
+        private boolean isNominated(int i) {
+            int length = nameEnd[i] - nameStart[i];
+            for (int j = 0; j < headers; j++) {
+                if (!equalsIgnoreCase(nameStart[j], nameEnd[j], "Connection"))
+                    continue;
+                int p = valueStart[j];
+                while (p < valueEnd[j]) {
+                    int q = p;
+                    while (q < valueEnd[j] && buf[q] != ',') q++;
+                    int s = p, e = q;
+                    while (s < e && isSpace(buf[s])) s++;
+                    while (e > s && isSpace(buf[e - 1])) e--;
+                    if (e - s == length) {
+                        int k = 0;
+                        while (k < length && (buf[s + k] | 0x20) == (buf[nameStart[i] + k] | 0x20))
+                            k++;
+                        if (k == length)
+                            return true;
+                    }
+                    p = q + 1;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * The named header as a non-negative number, or -1 if it is absent.
+         */
+        long getLong(String name) throws BadRequestException {
+            int i = indexOf(name);
+            if (i < 0)
+                return -1;
+            if (valueEnd[i] == valueStart[i] || valueEnd[i] - valueStart[i] > 18)
+                throw new BadRequestException(HTTP_BADREQUEST, "BAD REQUEST: Bad " + name + ".");
+            long n = 0;
+            for (int p = valueStart[i]; p < valueEnd[i]; p++) {
+                if (buf[p] < '0' || buf[p] > '9')
+                    throw new BadRequestException(HTTP_BADREQUEST, "BAD REQUEST: Bad " + name + ".");
+                n = n * 10 + (buf[p] - '0');
+            }
+            return n;
+        }
+
+        /**
+         * Looks up a query parameter of the request URI, percent-decoded as
+         * UTF-8. Only the matching value is turned into a String.
+         */
+        String parameter(String name) {
+            int q = uriStart;
+            while (q < uriEnd && buf[q] != '?')
+                q++;
+            int p = q + 1;
+            while (p < uriEnd) {
+                int amp = p;
+                while (amp < uriEnd && buf[amp] != '&')
+                    amp++;
+                int eq = p;
+                while (eq < amp && buf[eq] != '=')
+                    eq++;
+                if (eq < amp) {
+                    int n = decodePercent(buf, p, eq, scratch, 0);
+                    if (n == name.length() && equalsIgnoreCase(scratch, 0, n, name, false))
+                        return utf8(scratch, 0, decodePercent(buf, eq + 1, amp, scratch, 0));
+                }
+                p = amp + 1;
+            }
+            return null;
+        }
+
+        private int indexOf(String name) {
+            for (int i = 0; i < headers; i++)
+                if (equalsIgnoreCase(nameStart[i], nameEnd[i], name))
+                    return i;
+            return -1;
+        }
+
+        private boolean equalsIgnoreCase(int start, int end, String s) {
+            return end - start == s.length() && equalsIgnoreCase(buf, start, end - start, s, true);
+        }
+
+        private static boolean equalsIgnoreCase(byte[] b, int start, int len, String s, boolean ignoreCase) {
+            for (int i = 0; i < len; i++) {
+                int c = b[start + i] & 0xff;
+                int d = s.charAt(i);
+                if (c != d && (!ignoreCase || (c | 0x20) != (d | 0x20) || (c | 0x20) < 'a' || (c | 0x20) > 'z'))
+                    return false;
+            }
+            return true;
+        }
+
+        private String string(int start, int end) {
+            char[] chars = new char[end - start];
+            for (int i = start; i < end; i++)
+                chars[i - start] = (char) (buf[i] & 0xff);
+            return new String(chars);
+        }
+
+        private static String utf8(byte[] b, int off, int len) {
+            try {
+                return new String(b, off, len, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new Error(e);
+            }
+        }
+
+        /**
+         * Decodes the percent encoding scheme from src into dst and returns
+         * the decoded length. For example: "an+example%20string" -> "an example
+         * string". Malformed escapes are copied through as they are.
+         */
+        static int decodePercent(byte[] src, int start, int end, byte[] dst, int off) {
+            int n = off;
+            for (int i = start; i < end; i++) {
+                byte c = src[i];
+                if (c == '+') {
+                    dst[n++] = ' ';
+                } else if (c == '%' && i + 2 < end && hex(src[i + 1]) >= 0 && hex(src[i + 2]) >= 0) {
+                    dst[n++] = (byte) (hex(src[i + 1]) << 4 | hex(src[i + 2]));
+                    i += 2;
+                } else {
+                    dst[n++] = c;
+                }
+            }
+            return n - off;
+        }
+
+        private static int hex(byte b) {
+            if (b >= '0' && b <= '9') return b - '0';
+            if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+            if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+            return -1;
+        }
+
+        public int read() throws IOException {
+            if (pos < limit)
+                return buf[pos++] & 0xff;
+            int b = in.read();
+            if (b >= 0)
+                bytesRead++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos < limit) {
+                int n = Math.min(len, limit - pos);
+                System.arraycopy(buf, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+            int n = in.read(b, off, len);
+            if (n > 0)
+                bytesRead += n;
+            return n;
+        }
+
+        public int available() throws IOException {
+            return limit - pos + in.available();
+        }
+    }
+
+    /**
+     * Ordered header list with case-insensitive lookup. Unlike Properties it
+     * keeps repeated fields such as Set-Cookie apart.
+     */
+    public static class Headers implements HeaderSource {
+        private final ArrayList<String> names = new ArrayList<String>();
+        private final ArrayList<String> values = new ArrayList<String>();
+
+        public void add(String name, String value) {
+            names.add(name);
+            values.add(value);
+        }
+
+        public String get(String name) {
+            for (int i = 0; i < names.size(); i++)
+                if (names.get(i).equalsIgnoreCase(name))
+                    return values.get(i);
+            return null;
+        }
+
+        public void remove(String name) {
+            for (int i = names.size() - 1; i >= 0; i--)
+                if (names.get(i).equalsIgnoreCase(name)) {
+                    names.remove(i);
+                    values.remove(i);
+                }
+        }
+
+        public void set(String name, String value) {
+            remove(name);
+            add(name, value);
+        }
+
+        public int size() {
+            return names.size();
+        }
+
+        public String name(int i) {
+            return names.get(i);
+        }
+
+        public String value(int i) {
+            return values.get(i);
+        }
+
+        public void forward(OutputStream out) throws IOException {
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                if (!isListed(name, REFRAMED) && isEndToEnd(name))
+                    out.write((name + ": " + values.get(i) + "\r\n").getBytes("ISO-8859-1"));
+            }
+        }
+
+        /**
+         * The headers to relay downstream: all but the hop-by-hop ones and
+         * Transfer-Encoding, since the proxy frames the body itself. A
+         * Content-Length only survives if it actually framed the message.
+         */
+        Headers endToEnd() {
+            Headers relayed = new Headers();
+            boolean encoded = get("Transfer-Encoding") != null;
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                if (isEndToEnd(name) && !name.equalsIgnoreCase("Transfer-Encoding")
+                        && !(encoded && name.equalsIgnoreCase("Content-Length")))
+                    relayed.add(name, values.get(i));
+            }
+            return relayed;
+        }
+
+        boolean isEndToEnd(String name) {
+            if (isListed(name, HOP_BY_HOP))
+                return false;
+            for (int i = 0; i < names.size(); i++) {
+                if (!names.get(i).equalsIgnoreCase("Connection"))
+                    continue;
+                StringTokenizer st = new StringTokenizer(values.get(i), ",");
+                while (st.hasMoreTokens())
+                    if (st.nextToken().trim().equalsIgnoreCase(name))
+                        return false;
+            }
+            return true;
+        }
+    }
+
+    public class Response {
+
+        public Response(String status, String mimeType, InputStream data) {
+            this.status = status;
+            this.mimeType = mimeType;
+            this.data = data;
+        }
+
+        public String status;
+        public String mimeType;
+        public InputStream data;
+        public Headers header = new Headers();
+
+        public Response() {
+        }
+    }
+
+    public static final String HTTP_OK = "200 OK";
+    public static final String HTTP_BADREQUEST = "400 Bad Request";
+    public static final String HTTP_NOTMODIFIED = "304 Not Modified";
+    public static final String HTTP_FORBIDDEN = "403 Forbidden";
+    public static final String HTTP_HEADERTOOLARGE = "431 Request Header Fields Too Large";
+    public static final String HTTP_INTERNALERROR = "500 Internal Server Error";
+    public static final String HTTP_BADGATEWAY = "502 Bad Gateway";
+    public static final String HTTP_GATEWAYTIMEOUT = "504 Gateway Timeout";
+    public static final String HTTP_TOOMANYREQUESTS = "429 Too Many Requests";
+    public static final String HTTP_UNAVAILABLE = "503 Service Unavailable";
+
+    public static final String ENGINE_BLOCKING = "blocking";
+    public static final String ENGINE_NIO = "nio";
+    public static final String ENGINE_VIRTUAL = "virtual";
+
+    public static final String BALANCE_ROUND_ROBIN = "round-robin";
+    public static final String BALANCE_LEAST_OUTSTANDING = "least-outstanding";
+    public static final String BALANCE_P2C = "p2c";
+
+    public static final String MIME_PLAINTEXT = "text/plain";
+    public static final String MIME_HTML = "text/html";
+
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+    private static final byte[] CONNECT_ESTABLISHED = "HTTP/1.1 200 Connection Established\r\n\r\n".getBytes();
+
+    public NanoProxy(int port) throws IOException {
+        this(port, new Config());
+    }
+
+    public NanoProxy(int port, Config config) throws IOException {
+        runThread = true;
+        metricsPath = config.metricsPath;
+        connectPorts = config.connectPorts;
+        directBuffers = new BufferPool(true, config.bufferPoolMaxBytes, true, config.bufferLeakDetection);
+        // A virtual thread's own cache would die with its session
+        heapBuffers = new BufferPool(false, config.bufferPoolMaxBytes, !ENGINE_VIRTUAL.equals(config.engine),
+                config.bufferLeakDetection);
+        tunnels = new TunnelPump(config.tunnelIdleMillis);
+        tuning = new SocketTuning(config);
+        if (ENGINE_NIO.equals(config.engine)) {
+            checkNioConfig(config);
+            nioEngine = new NioEngine(port, config);
+            nioEngine.start();
+            return;
+        }
+        keepAliveMillis = config.keepAliveMillis;
+        maxKeepAliveRequests = config.maxKeepAliveRequests;
+        // Each worker thread reuses one parser, and its buffer, for every
+        // connection it serves
+        final int maxHeadBytes = config.maxRequestHeadBytes;
+        final int maxHeaders = config.maxRequestHeaders;
+        parsers = new ThreadLocal<RequestParser>() {
+            protected RequestParser initialValue() {
+                return new RequestParser(maxHeadBytes, maxHeaders);
+            }
+        };
+        workers = ENGINE_VIRTUAL.equals(config.engine) ? newVirtualThreadExecutor() : newWorkerPool(config);
+        upstreamPool = new UpstreamPool(config.upstreamMaxPerHost, config.upstreamAcquireTimeoutMillis,
+                config.upstreamIdleMillis, config.upstreamConnectTimeoutMillis, tuning);
+        firstByteTimeoutMillis = config.upstreamFirstByteTimeoutMillis;
+        totalTimeoutMillis = config.upstreamTotalTimeoutMillis;
+        upstreamRetries = config.upstreamRetries;
+        retryBackoffMillis = config.retryBackoffMillis;
+        retryBudget = new RetryBudget(config.retryBudgetPercent / 100.0, 10);
+        if (config.hedgeRequests)
+            hedger = new Hedger(config.hedgePercentile);
+        if (config.rateLimitPerSecond > 0 || config.maxInFlightPerClient > 0 || config.clientBytesPerSecond > 0)
+            clientLimiter = new ClientLimiter(config.rateLimitPerSecond, config.rateLimitBurst,
+                    config.maxInFlightPerClient, config.clientBytesPerSecond);
+        if (config.cacheMaxBytes > 0)
+            responseCache = new ResponseCache(config.cacheMaxBytes, config.cacheMaxEntryBytes);
+        if (config.diskCacheDir != null)
+            diskCache = new DiskCache(config.diskCacheDir, config.diskCacheMaxBytes, config.diskCacheSegmentBytes);
+        if (config.coalesceRequests)
+            coalescer = new Coalescer(config.coalesceTimeoutMillis, config.coalesceMaxBytes);
+        if (config.compressResponses)
+            compressor = new Compressor(config);
+        if (config.backends != null) {
+            backendPools = new HashMap<String, BackendPool>();
+            for (Map.Entry<String, String[]> e : config.backends.entrySet())
+                backendPools.put(e.getKey().toLowerCase(Locale.US), new BackendPool(e.getKey(), e.getValue(), config));
+            healthChecker = new HealthChecker(config.healthCheckPath, config.healthCheckMillis);
+        }
+        // Opened through channels so accepted sockets can take part in
+        // channel transfers
+        listeners = new ServerSocket[Math.max(1, config.acceptors)];
+        acceptors = new Thread[listeners.length];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = listen(port, config).socket();
+            // Wake up now and then to notice a drain
+            listeners[i].setSoTimeout(250);
+            acceptors[i] = new Thread(new Acceptor(listeners[i]), "NanoProxy-acceptor-" + i);
+            acceptors[i].setDaemon(true);
+            acceptors[i].start();
+        }
+    }
+
+    /**
+     * Fails on options the nio engine would otherwise silently ignore: it
+     * relays responses unread, so it can't store, compress or pace them.
+     */
+    private static void checkNioConfig(Config config) {
+        String unsupported = null;
+        if (config.cacheMaxBytes > 0 || config.diskCacheDir != null)
+            unsupported = "response caching";
+        else if (config.compressResponses)
+            unsupported = "compression";
+        else if (config.backends != null)
+            unsupported = "backend pools";
+        else if (config.rateLimitPerSecond > 0 || config.maxInFlightPerClient > 0 || config.clientBytesPerSecond > 0)
+            unsupported = "client limits";
+        else if (config.hedgeRequests)
+            unsupported = "hedged requests";
+        if (unsupported != null)
+            throw new IllegalArgumentException("The nio engine does not support " + unsupported);
+    }
+
+    /**
+     * Accepts off one listening socket and queues each connection for a
+     * worker.
+     */
+    private class Acceptor implements Runnable {
+        private final ServerSocket listener;
+
+        Acceptor(ServerSocket listener) {
+            this.listener = listener;
+        }
+
+        public void run() {
+            while (runThread) {
+                try {
+                    workers.execute(new HTTPSession(listener.accept()));
+                } catch (SocketTimeoutException ste) {
+                    if (draining) {
+                        // Whatever was still in the backlog has been taken
+                        try {
+                            listener.close();
+                        } catch (IOException ioe) {
+                        }
+                        return;
+                    }
+                } catch (IOException ioe) {
+                    // Out of descriptors and the like; keep accepting
+                    if (listener.isClosed())
+                        return;
+                    metrics.acceptErrors.add(1);
+                }
+                try {
+                    if (draining)
+                        listener.setSoTimeout(1);
+                } catch (IOException ioe) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Shuts down gracefully: stops accepting, answers what was already
+     * accepted or in progress, closing each connection after its current
+     * response, and closes idle keep-alive connections straight away.
+     * Whatever is still running after timeoutMillis is cut off by stop().
+     * Returns true if everything finished in time.
+     */
+    public boolean drain(long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        draining = true;
+        // Let go of the port first, so a successor bound with reusePort
+        // gets every new connection from here on
+        if (nioEngine != null)
+            nioEngine.stopAccepting();
+        else
+            for (Thread acceptor : acceptors)
+                acceptor.join(Math.max(1, deadline - System.currentTimeMillis()));
+        boolean drained;
+        while (true) {
+            for (HTTPSession session : sessions)
+                session.closeIfIdle();
+            if (sessions.isEmpty() && metrics.activeSessions.sum() == 0) {
+                drained = true;
+                break;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                drained = false;
+                break;
+            }
+            Thread.sleep(10);
+        }
+        stop();
+        return drained;
+    }
+
+    /**
+     * Opens and binds a listening channel with the configured backlog.
+     */
+    private static ServerSocketChannel listen(int port, Config config) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (config.reusePort || config.acceptors > 1)
+                reusePort(channel);
+            // Accepted sockets inherit it from the listener, and only
+            // there is it in time to offer a window above 64KB
+            if (config.socketReceiveBufferBytes > 0)
+                channel.socket().setReceiveBufferSize(config.socketReceiveBufferBytes);
+            channel.socket().bind(new InetSocketAddress(port), config.acceptBacklog);
+        } catch (IOException ioe) {
+            closeQuietly(channel);
+            throw ioe;
+        }
+        return channel;
+    }
+
+    /**
+     * Sets SO_REUSEPORT on a channel that is not bound yet. The option only
+     * exists from Java 9 on, so it is looked up by reflection.
+     */
+    private static void reusePort(ServerSocketChannel channel) throws IOException {
+        try {
+            Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            ServerSocketChannel.class.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class)
+                    .invoke(channel, option, Boolean.TRUE);
+        } catch (Exception e) {
+            throw new IOException("SO_REUSEPORT needs Java 9 or later on a platform that supports it", e);
+        }
+    }
+
+    public void stop() throws IOException {
+        this.runThread = false;
+        tunnels.close();
+        if (nioEngine != null) {
+            nioEngine.stop();
+            return;
+        }
+        for (ServerSocket listener : listeners)
+            listener.close();
+        // A listener closed under a blocked accept keeps its port until
+        // the accepting thread has woken up to it
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join(1000);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.shutdown();
+        if (healthChecker != null)
+            healthChecker.close();
+        if (hedger != null)
+            hedger.executor.shutdownNow();
+        if (diskCache != null)
+            diskCache.close();
+        // Kept-alive connections would otherwise outlive the proxy
+        for (HTTPSession session : sessions)
+            session.mySocket.close();
+        upstreamPool.close();
+    }
+
+    /**
+     * Requests that went out on a reused upstream connection.
+     */
+    public long getUpstreamPoolHits() {
+        return upstreamPool == null ? 0 : upstreamPool.hits.get();
+    }
+
+    /**
+     * Requests that had to open a new upstream connection.
+     */
+    public long getUpstreamPoolMisses() {
+        return upstreamPool == null ? 0 : upstreamPool.misses.get();
+    }
+
+    /**
+     * Socket buffers the pools had to allocate rather than reuse.
+     */
+    public long getBufferAllocations() {
+        return directBuffers.allocations.get() + heapBuffers.allocations.get();
+    }
+
+    /**
+     * Pooled buffers currently taken and not yet given back.
+     */
+    public int getLeasedBuffers() {
+        return directBuffers.leased.get() + heapBuffers.leased.get();
+    }
+
+    /**
+     * Where each buffer still taken was taken, if bufferLeakDetection is
+     * on; empty otherwise.
+     */
+    public List<Throwable> getLeakedBuffers() {
+        List<Throwable> leaks = directBuffers.leases();
+        leaks.addAll(heapBuffers.leases());
+        return leaks;
+    }
+
+    /**
+     * GETs answered from the response cache.
+     */
+    public long getCacheHits() {
+        return responseCache == null ? 0 : responseCache.hits.get();
+    }
+
+    /**
+     * Cacheable GETs that had to go upstream.
+     */
+    public long getCacheMisses() {
+        return responseCache == null ? 0 : responseCache.misses.get();
+    }
+
+    /**
+     * Entries dropped to keep the cache within cacheMaxBytes.
+     */
+    public long getCacheEvictions() {
+        return responseCache == null ? 0 : responseCache.evictions.get();
+    }
+
+    /**
+     * Stale cache entries, in either tier, that the upstream confirmed with
+     * a 304 instead of sending the body again.
+     */
+    public long getCacheRevalidations() {
+        return (responseCache == null ? 0 : responseCache.revalidations.get())
+                + (diskCache == null ? 0 : diskCache.revalidations.get());
+    }
+
+    /**
+     * Response bodies gzipped by the proxy, each cached variant counted once.
+     */
+    public long getCompressions() {
+        return compressor == null ? 0 : compressor.compressed.get();
+    }
+
+    /**
+     * GETs that were answered with another request's upstream response.
+     */
+    public long getCoalescedRequests() {
+        return coalescer == null ? 0 : coalescer.coalesced.get();
+    }
+
+    /**
+     * GETs answered from the on-disk cache tier.
+     */
+    public long getDiskCacheHits() {
+        return diskCache == null ? 0 : diskCache.hits.get();
+    }
+
+    /**
+     * Entries dropped along with their segment to stay within the disk quota.
+     */
+    public long getDiskCacheEvictions() {
+        return diskCache == null ? 0 : diskCache.evictions.get();
+    }
+
+    /**
+     * Current metrics in the Prometheus text format, as served on the
+     * metrics path.
+     */
+    public String getMetrics() {
+        StringBuilder sb = new StringBuilder(8192);
+        metrics.render(sb);
+        Metrics.counter(sb, "nanoproxy_upstream_pool_hits_total", "Requests sent on a reused upstream connection.",
+                getUpstreamPoolHits());
+        Metrics.counter(sb, "nanoproxy_upstream_pool_misses_total", "Requests that opened a new upstream connection.",
+                getUpstreamPoolMisses());
+        Metrics.counter(sb, "nanoproxy_cache_hits_total", "GETs answered from the memory cache.", getCacheHits());
+        Metrics.counter(sb, "nanoproxy_cache_misses_total", "Cacheable GETs that went upstream.", getCacheMisses());
+        Metrics.counter(sb, "nanoproxy_cache_evictions_total", "Entries evicted from the memory cache.",
+                getCacheEvictions());
+        Metrics.counter(sb, "nanoproxy_cache_revalidations_total", "Stale entries renewed by a 304 from upstream.",
+                getCacheRevalidations());
+        Metrics.counter(sb, "nanoproxy_disk_cache_hits_total", "GETs answered from the disk cache.",
+                getDiskCacheHits());
+        Metrics.counter(sb, "nanoproxy_disk_cache_evictions_total", "Entries evicted from the disk cache.",
+                getDiskCacheEvictions());
+        if (backendPools != null) {
+            String[] gauges = {"available", "Whether a backend node takes traffic.",
+                    "outstanding", "Requests in flight on a backend node.",
+                    "ejections", "Current ejection streak of a backend node."};
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < gauges.length; i += 2) {
+                sb.append("# HELP nanoproxy_backend_").append(gauges[i]).append(' ').append(gauges[i + 1]).append('\n');
+                sb.append("# TYPE nanoproxy_backend_").append(gauges[i]).append(" gauge\n");
+                for (BackendPool pool : backendPools.values())
+                    pool.render(sb, gauges[i], now);
+            }
+        }
+        Metrics.counter(sb, "nanoproxy_compressions_total", "Response bodies gzipped by the proxy.",
+                getCompressions());
+        Metrics.counter(sb, "nanoproxy_coalesced_requests_total", "GETs answered with another request's response.",
+                getCoalescedRequests());
+        Metrics.counter(sb, "nanoproxy_buffer_allocations_total", "Socket buffers allocated rather than reused.",
+                getBufferAllocations());
+        Metrics.gauge(sb, "nanoproxy_buffers_leased", "Pooled socket buffers in use.", getLeasedBuffers());
+        return sb.toString();
+    }
+
+    /**
+     * The unresolved host:port a CONNECT asks for, or null if the request
+     * target isn't one.
+     */
+    static InetSocketAddress connectTarget(String authority) {
+        int colon = authority.lastIndexOf(':');
+        if (colon <= 0)
+            return null;
+        String host = authority.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+        try {
+            int port = Integer.parseInt(authority.substring(colon + 1));
+            return port > 0 && port < 65536 ? InetSocketAddress.createUnresolved(host, port) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private boolean isConnectAllowed(int port) {
+        if (connectPorts == null)
+            return true;
+        for (int i = 0; i < connectPorts.length; i++)
+            if (connectPorts[i] == port)
+                return true;
+        return false;
+    }
+
+    /**
+     * The backend pool serving a virtual host, given with or without a port.
+     */
+    private BackendPool backendPool(String host) {
+        int colon = host.lastIndexOf(':');
+        if (colon > host.lastIndexOf(']'))
+            host = host.substring(0, colon);
+        return backendPools.get(host.trim().toLowerCase(Locale.US));
+    }
+
+    /**
+     * Answers the metrics path, for local clients only.
+     */
+    private Response serveMetrics(InetAddress client) throws IOException {
+        if (!client.isLoopbackAddress())
+            return new Response(HTTP_FORBIDDEN, MIME_PLAINTEXT,
+                    new ByteArrayInputStream("FORBIDDEN: Metrics are only served to local clients.".getBytes()));
+        return new Response(HTTP_OK, Metrics.MIME_TYPE, new ByteArrayInputStream(getMetrics().getBytes("UTF-8")));
+    }
+
+    /**
+     * Builds the session pool: threads grow from minWorkers to maxWorkers
+     * before anything queues, up to acceptQueue connections then wait for a
+     * free worker, and anything beyond that is refused with a 503 so the
+     * accept loop never stalls.
+     */
+    private static ThreadPoolExecutor newWorkerPool(Config config) {
+        int max = Math.max(1, config.maxWorkers);
+        int min = Math.max(0, Math.min(config.minWorkers, max));
+        final int capacity = config.acceptQueue;
+        // With no room to wait in, a connection goes to an idle worker or a
+        // new one, which a SynchronousQueue already makes the pool do
+        final WorkerQueue queue = capacity > 0 ? new WorkerQueue(capacity, max) : null;
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                if (queue == null)
+                    return newWorker(r, count.incrementAndGet());
+                queue.workers.incrementAndGet();
+                return newWorker(new Runnable() {
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            queue.workers.decrementAndGet();
+                        }
+                    }
+                }, count.incrementAndGet());
+            }
+        };
+        RejectedExecutionHandler refuse = new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (queue == null || executor.isShutdown() || !queue.force(r))
+                    ((HTTPSession) r).refuse();
+            }
+        };
+        if (queue == null)
+            return new ThreadPoolExecutor(min, max, config.workerIdleMillis, TimeUnit.MILLISECONDS,
+                    new SynchronousQueue<Runnable>(), factory, refuse);
+        return new ThreadPoolExecutor(min, max, config.workerIdleMillis, TimeUnit.MILLISECONDS,
+                queue, factory, refuse) {
+            protected void beforeExecute(Thread t, Runnable r) {
+                queue.busy.incrementAndGet();
+            }
+
+            protected void afterExecute(Runnable r, Throwable t) {
+                queue.busy.decrementAndGet();
+            }
+        };
+    }
+
+    private static Thread newWorker(Runnable r, int n) {
+        Thread t = new Thread(r, "NanoProxy-worker-" + n);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Runs every session on a virtual thread of its own, so a session
+     * blocked on its upstream costs a small heap object instead of a
+     * platform thread and its stack. There is no pool to size or saturate;
+     * the worker settings don't apply. Looked up reflectively, as the
+     * proxy still builds for Java 6 and runs there in the other engines.
+     */
+    private static ExecutorService newVirtualThreadExecutor() throws IOException {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            ofVirtual = builder.getMethod("name", String.class, long.class).invoke(ofVirtual, "NanoProxy-session-", 1L);
+            ThreadFactory factory = (ThreadFactory) builder.getMethod("factory").invoke(ofVirtual);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (Exception e) {
+            throw new IOException("The virtual engine needs Java 21 or later", e);
+        }
+    }
+
+    /**
+     * ThreadPoolExecutor only starts threads beyond the core size once its
+     * queue refuses work. This queue refuses while the pool may still grow
+     * and every worker is busy, which makes the pool elastic; the rejection
+     * handler then queues for real with force(). The pool's own counts take
+     * its main lock, so workers and busy are kept here instead, by the
+     * thread factory and around each session.
+     */
+    private static class WorkerQueue extends LinkedBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxWorkers;
+        final AtomicInteger workers = new AtomicInteger();
+        final AtomicInteger busy = new AtomicInteger();
+
+        WorkerQueue(int capacity, int maxWorkers) {
+            super(capacity);
+            this.maxWorkers = maxWorkers;
+        }
+
+        public boolean offer(Runnable r) {
+            int n = workers.get();
+            if (n < maxWorkers && busy.get() >= n)
+                return false;
+            return super.offer(r);
+        }
+
+        boolean force(Runnable r) {
+            return super.offer(r);
+        }
+    }
+
+    public static void main(String[] args) {
+        System.out.println("NanoProxy 0.11 (C) 2013, Crane Zhang\n" +
+                "(Command line options: [port] [--licence] [--engine blocking|virtual|nio] [--event-loops n]\n" +
+                " [--min-workers n] [--max-workers n] [--accept-queue n] [--cache-mb n]\n" +
+                " [--disk-cache dir] [--disk-cache-mb n] [--acceptors n] [--backlog n]\n" +
+                " [--tcp-nodelay true|false] [--tcp-keepalive true|false] [--sndbuf bytes] [--rcvbuf bytes])\n");
+
+        // Show licence if requested
+        int lopt = -1;
+        for (int i = 0; i < args.length; ++i)
+            if (args[i].toLowerCase().endsWith("licence")) {
+                lopt = i;
+                System.out.println(LICENCE + "\n");
+            }
+
+        // Change port if requested
+        int port = 1024;
+        if (args.length > 0 && lopt != 0 && !args[0].startsWith("--"))
+            port = Integer.parseInt(args[0]);
+
+        if (args.length > 1 &&
+                args[1].toLowerCase().endsWith("licence"))
+            System.out.println(LICENCE + "\n");
+
+        Config config = new Config();
+        for (int i = 0; i + 1 < args.length; ++i) {
+            if (args[i].equals("--engine"))
+                config.engine = args[++i];
+            else if (args[i].equals("--event-loops"))
+                config.eventLoops = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--min-workers"))
+                config.minWorkers = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--max-workers"))
+                config.maxWorkers = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--accept-queue"))
+                config.acceptQueue = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--cache-mb"))
+                config.cacheMaxBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+            else if (args[i].equals("--disk-cache"))
+                config.diskCacheDir = new File(args[++i]);
+            else if (args[i].equals("--disk-cache-mb"))
+                config.diskCacheMaxBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+            else if (args[i].equals("--acceptors"))
+                config.acceptors = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--backlog"))
+                config.acceptBacklog = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--tcp-nodelay"))
+                config.tcpNoDelay = Boolean.parseBoolean(args[++i]);
+            else if (args[i].equals("--tcp-keepalive"))
+                config.tcpKeepAlive = Boolean.parseBoolean(args[++i]);
+            else if (args[i].equals("--sndbuf"))
+                config.socketSendBufferBytes = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--rcvbuf"))
+                config.socketReceiveBufferBytes = Integer.parseInt(args[++i]);
+        }
+
+        NanoProxy nh = null;
+        try {
+            nh = new NanoProxy(port, config);
+        } catch (IOException ioe) {
+            System.err.println("Couldn't start server:\n" + ioe);
+            System.exit(-1);
+        }
+
+        System.out.println("Hit Enter to stop.\n");
+
+        try {
+            System.in.read();
+        } catch (Throwable t) {
+        };
+    }
+
+    /**
+     * Handles one session, i.e. parses the HTTP request
+     * and returns the response.
+     */
+    private class HTTPSession implements Runnable {
+        private static final int BUSY = 0;
+        private static final int IDLE = 1;
+        private static final int CLOSED = 2;
+
+        private Socket mySocket;
+        private ByteBuffer pooled;
+        private byte[] buffer;
+        private final long acceptedNanos = System.nanoTime();
+        private CountingOutputStream out;
+        private boolean keepAlive;
+        private boolean chunkedAllowed;
+        private boolean headRequest;
+        private boolean tunneled;
+        private ClientLimiter.Client client;
+        /**
+         * IDLE while waiting for the next request on a kept-alive
+         * connection, so drain() can close it without cutting off a reply.
+         */
+        private final AtomicInteger state = new AtomicInteger(BUSY);
+
+        public HTTPSession(Socket s) {
+            mySocket = s;
+            // Counted from the accept on, so drain() waits for sessions
+            // still queued for a worker too
+            sessions.add(this);
+        }
+
+        void closeIfIdle() {
+            if (state.compareAndSet(IDLE, CLOSED)) {
+                try {
+                    mySocket.close();
+                } catch (IOException ioe) {
+                }
+            }
+        }
+
+        /**
+         * Called instead of run() when the worker pool is saturated.
+         */
+        void refuse() {
+            takeBuffer();
+            sendResponse(HTTP_UNAVAILABLE, MIME_PLAINTEXT, null,
+                    new ByteArrayInputStream("SERVICE UNAVAILABLE: Too many connections.".getBytes()));
+            giveBuffer();
+            sessions.remove(this);
+            try {
+                mySocket.close();
+            } catch (IOException ioe) {
+            }
+        }
+
+        private void takeBuffer() {
+            pooled = heapBuffers.acquire(16 * 1024);
+            buffer = pooled.array();
+        }
+
+        private void giveBuffer() {
+            heapBuffers.release(pooled);
+            pooled = null;
+            buffer = null;
+        }
+
+        public void run() {
+            takeBuffer();
+            metrics.activeSessions.add(1);
+            metrics.acceptWait.recordNanos(System.nanoTime() - acceptedNanos);
+            RequestParser request = null;
+            try {
+                InputStream is = mySocket.getInputStream();
+                if (is == null) return;
+
+                mySocket.setSoTimeout(keepAliveMillis);
+                // Large bodies still go out in several writes; with
+                // tcpNoDelay Nagle won't hold the tail back for an ACK
+                tuning.apply(mySocket);
+                request = parsers.get();
+                request.reset(is);
+                int served = 0;
+                do {
+                    keepAlive = ++served < maxKeepAliveRequests;
+                } while (handleRequest(request) && keepAlive && !draining && state.compareAndSet(BUSY, IDLE));
+            } catch (SocketTimeoutException ste) {
+                // Idle keep-alive connection, just let it go.
+            } catch (IOException ioe) {
+                try {
+                    sendError(HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+                } catch (Throwable t) {
+                }
+            } catch (InterruptedException ie) {
+                // Thrown by sendError, ignore and exit the thread.
+            } finally {
+                sessions.remove(this);
+                metrics.activeSessions.add(-1);
+                if (request != null)
+                    metrics.bytesIn.add(request.takeBytesRead());
+                try {
+                    if (!tunneled)
+                        mySocket.close();
+                } catch (IOException ioe) {
+                }
+                giveBuffer();
+            }
+        }
+
+        /**
+         * Reads and answers one request off the connection. Pipelined
+         * requests simply wait in the parser's buffer and are answered in
+         * order by the following calls. Returns false once the client has
+         * closed the connection.
+         */
+        private boolean handleRequest(RequestParser request) throws IOException, InterruptedException {
+            try {
+                if (!request.parse())
+                    return false;
+            } catch (BadRequestException bre) {
+                sendError(bre.status, bre.getMessage());
+            }
+            // A drain closed the connection while the head was arriving
+            if (!state.compareAndSet(IDLE, BUSY) && state.get() == CLOSED)
+                return false;
+            long start = request.startNanos();
+            metrics.requests.add(1);
+            metrics.parse.recordNanos(System.nanoTime() - start);
+
+            String method = request.method();
+            String uri = request.uri();
+            // In reverse-proxy mode origin-form requests name their virtual
+            // host in Host, and then even the metrics path is the backend's
+            if (backendPools != null && uri.startsWith("/")) {
+                String host = request.get("host");
+                if (host != null && backendPool(host) != null)
+                    uri = "http://" + host.trim() + uri;
+            }
+            if (clientLimiter != null && !uri.equals(metricsPath)) {
+                if (client == null)
+                    client = clientLimiter.client(mySocket.getInetAddress());
+                long wait = client.admit();
+                if (wait > 0) {
+                    metrics.rejected("rate");
+                    Headers retry = new Headers();
+                    retry.add("Retry-After", String.valueOf((wait + 999999999) / 1000000000));
+                    sendError(HTTP_TOOMANYREQUESTS, retry, "TOO MANY REQUESTS: Slow down.");
+                }
+            }
+            if (method.equalsIgnoreCase("CONNECT")) {
+                openTunnel(uri, request);
+                return false;
+            }
+            if (client != null && !client.enter()) {
+                metrics.rejected("in_flight");
+                sendError(HTTP_UNAVAILABLE, "SERVICE UNAVAILABLE: Too many requests in progress.");
+            }
+            try {
+                return serveRequest(request, method, uri, start);
+            } finally {
+                if (client != null)
+                    client.leave();
+            }
+        }
+
+        private boolean serveRequest(RequestParser request, String method, String uri, long start)
+                throws IOException, InterruptedException {
+
+            // HTTP/1.1 connections persist unless the client says otherwise,
+            // HTTP/1.0 ones only when the client asks for it.
+            chunkedAllowed = request.version() == RequestParser.HTTP_1_1;
+            headRequest = method.equalsIgnoreCase("HEAD");
+            String connection = request.get("connection") != null ? "connection" : "proxy-connection";
+            if (request.hasToken(connection, "close"))
+                keepAlive = false;
+            else if (!chunkedAllowed && !request.hasToken(connection, "keep-alive"))
+                keepAlive = false;
+
+            // The request body, framed by Content-Length or chunked encoding,
+            // is streamed upstream as it arrives rather than read up front.
+            InputStream body = null;
+            long contentLength = -1;
+            try {
+                if (request.hasToken("transfer-encoding", "chunked"))
+                    body = new ChunkedInputStream(request, true);
+                else if ((contentLength = request.getLong("content-length")) >= 0)
+                    body = new LengthInputStream(request, contentLength);
+            } catch (BadRequestException bre) {
+                sendError(bre.status, bre.getMessage());
+            }
+            // The Expect header isn't forwarded, so the go-ahead comes from here
+            if (body != null && chunkedAllowed && request.hasToken("expect", "100-continue")) {
+                if (out == null)
+                    out = new CountingOutputStream(mySocket.getOutputStream());
+                out.write(CONTINUE);
+                out.flush();
+            }
+
+            // Any method goes upstream with its headers; only bodiless
+            // requests can be answered from the cache.
+            Response r = null;
+            try {
+                if (uri.equals(metricsPath))
+                    r = serveMetrics(mySocket.getInetAddress());
+                else if (body == null)
+                    r = serveWeb(uri, method, request);
+                else
+                    r = serveWeb(uri, method, request, body, contentLength);
+            } catch (GatewayTimeoutException gte) {
+                sendError(HTTP_GATEWAYTIMEOUT, "GATEWAY TIMEOUT: " + gte.getMessage());
+            } catch (BadRequestException bre) {
+                keepAlive = false;
+                sendError(bre.status, bre.getMessage());
+            }
+
+            if (r == null)
+                sendError(HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: Server returned a null response.");
+            if (compressor != null && Compressor.acceptsGzip(request))
+                compressor.compress(r);
+            sendResponse(r.status, r.mimeType, r.header, r.data);
+
+            // Whatever the upstream left unread must not be taken for the next request
+            if (body != null)
+                while (body.read(buffer) >= 0)
+                    ;
+            metrics.bytesIn.add(request.takeBytesRead());
+            metrics.total.recordNanos(System.nanoTime() - start);
+            return true;
+        }
+
+        /**
+         * Answers a CONNECT: opens the upstream socket, then hands both ends
+         * and the 200 reply to the tunnel pump. The session ends here but
+         * leaves the connection open.
+         */
+        private void openTunnel(String authority, RequestParser request) throws IOException, InterruptedException {
+            InetSocketAddress target = connectTarget(authority);
+            if (target == null)
+                sendError(HTTP_BADREQUEST, "BAD REQUEST: CONNECT needs a host:port target.");
+            if (!isConnectAllowed(target.getPort()))
+                sendError(HTTP_FORBIDDEN, "FORBIDDEN: Tunnels to port " + target.getPort() + " are not allowed.");
+            SocketChannel upstream = SocketChannel.open();
+            try {
+                tuning.apply(upstream.socket());
+                long started = System.nanoTime();
+                upstream.socket().connect(new InetSocketAddress(target.getHostName(), target.getPort()),
+                        upstreamPool.connectTimeoutMillis);
+                metrics.connect.recordNanos(System.nanoTime() - started);
+            } catch (IOException ioe) {
+                closeQuietly(upstream);
+                metrics.upstreamError(target.getHostName(), target.getPort());
+                sendError(HTTP_BADGATEWAY, "BAD GATEWAY: " + ioe);
+            }
+            metrics.response(HTTP_OK);
+            tunneled = true;
+            tunnels.open(mySocket.getChannel(), upstream, ByteBuffer.wrap(request.drainBuffered()),
+                    ByteBuffer.wrap(CONNECT_ESTABLISHED));
+        }
+
+        /**
+         * Returns an error message as a HTTP response and
+         * throws InterruptedException to stop furhter request processing.
+         */
+        private void sendError(String status, String msg) throws InterruptedException {
+            sendError(status, null, msg);
+        }
+
+        private void sendError(String status, Headers header, String msg) throws InterruptedException {
+            sendResponse(status, MIME_PLAINTEXT, header, new ByteArrayInputStream(msg.getBytes()));
+            throw new InterruptedException();
+        }
+
+        /**
+         * Sends given response to the socket.
+         */
+        private void sendResponse(String status, String mime, Headers header, InputStream data) {
+            try {
+                if (status == null)
+                    throw new Error("sendResponse(): Status can't be null.");
+
+                metrics.response(status);
+                if (out == null)
+                    out = new CountingOutputStream(mySocket.getOutputStream());
+                // Tell clients of a draining proxy not to send more
+                if (draining)
+                    keepAlive = false;
+                ResponseHead head = ResponseHead.get();
+                int framing = writeHead(head, status, mime, header, data, headRequest, chunkedAllowed, keepAlive);
+                boolean chunked = framing == BODY_CHUNKED;
+                if (framing == BODY_CLOSE)
+                    keepAlive = false;
+                long sent = head.size();
+
+                // A shaped body is paced through the stream, so it can't
+                // be handed to the kernel in one transferTo
+                boolean shaped = client != null && client.isShaped();
+                long started = System.nanoTime();
+                // Whatever of the body is already at hand leaves in the same
+                // write as the head; a small response takes one syscall
+                int first = 0;
+                if (data != null && !shaped && !(data instanceof FileRegionInputStream)
+                        && !(data instanceof FileInputStream) && data.available() > 0) {
+                    first = Math.max(0, data.read(buffer, 0, buffer.length));
+                    if (chunked && first > 0)
+                        head.chunk(buffer, 0, first);
+                    else
+                        head.append(buffer, 0, first);
+                    sent += first;
+                }
+                head.writeTo(out);
+
+                if (data != null) {
+                    OutputStream target = shaped ? client.shape(out) : out;
+                    if (chunked) {
+                        ChunkedOutputStream body = new ChunkedOutputStream(target, first > 0);
+                        sent += transfer(data, body, null, buffer);
+                        body.finish();
+                    } else
+                        sent += transfer(data, target, shaped ? null : mySocket.getChannel(), buffer);
+                    metrics.transfer.recordNanos(System.nanoTime() - started);
+                }
+                metrics.bytesOut.add(sent);
+                out.flush();
+                if (!keepAlive)
+                    out.close();
+                if (data != null)
+                    data.close();
+            } catch (IOException ioe) {
+                // Couldn't write? No can do.
+                metrics.clientErrors.add(1);
+                try {
+                    mySocket.close();
+                    if (data != null)
+                        data.close();
+                } catch (Throwable t) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Event-loop front end: a handful of selector threads parse requests
+     * straight out of ByteBuffers and shuttle bytes to and from the upstream
+     * without ever parking a thread on a slow client.
+     */
+    private class NioEngine {
+        private final ServerSocketChannel[] servers;
+        private final EventLoop[] loops;
+        private final Thread[] threads;
+        private final ExecutorService resolver;
+        private final AtomicInteger next = new AtomicInteger();
+        final int connectTimeoutMillis;
+        final int firstByteTimeoutMillis;
+        final long totalTimeoutMillis;
+
+        NioEngine(int port, Config config) throws IOException {
+            connectTimeoutMillis = config.upstreamConnectTimeoutMillis;
+            firstByteTimeoutMillis = config.upstreamFirstByteTimeoutMillis;
+            totalTimeoutMillis = config.upstreamTotalTimeoutMillis;
+            servers = new ServerSocketChannel[Math.max(1, config.acceptors)];
+            for (int i = 0; i < servers.length; i++) {
+                servers[i] = listen(port, config);
+                servers[i].configureBlocking(false);
+            }
+            resolver = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "NanoProxy-resolver");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            loops = new EventLoop[Math.max(1, config.eventLoops)];
+            threads = new Thread[loops.length];
+            for (int i = 0; i < loops.length; i++)
+                loops[i] = new EventLoop();
+            for (int i = 0; i < servers.length; i++)
+                servers[i].register(loops[i % loops.length].selector, SelectionKey.OP_ACCEPT);
+        }
+
+        void start() {
+            for (int i = 0; i < loops.length; i++) {
+                threads[i] = new Thread(loops[i], "NanoProxy-loop-" + i);
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+        }
+
+        /**
+         * Takes whatever is left in the backlogs, then closes the listeners.
+         */
+        void stopAccepting() {
+            for (int i = 0; i < servers.length; i++) {
+                final ServerSocketChannel server = servers[i];
+                final EventLoop loop = loops[i % loops.length];
+                loop.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            accept(server, loop);
+                        } catch (IOException ioe) {
+                        }
+                        closeQuietly(server);
+                    }
+                });
+            }
+        }
+
+        void stop() throws IOException {
+            for (ServerSocketChannel server : servers)
+                server.close();
+            resolver.shutdownNow();
+            for (int i = 0; i < loops.length; i++)
+                loops[i].close();
+            // A listener still registered with a selector keeps its port
+            // until its loop has deregistered it
+            for (int i = 0; i < threads.length; i++) {
+                try {
+                    threads[i].join(1000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Hands freshly accepted clients to the loops, round robin, unless
+         * every loop has a listener of its own: then the kernel has spread
+         * them already and each stays on the loop that accepted it.
+         */
+        void accept(ServerSocketChannel server, EventLoop acceptor) throws IOException {
+            SocketChannel client;
+            while ((client = server.accept()) != null) {
+                final SocketChannel c = client;
+                final EventLoop loop = servers.length >= loops.length ? acceptor
+                        : loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+                try {
+                    tuning.apply(c.socket());
+                    c.configureBlocking(false);
+                } catch (IOException ioe) {
+                    closeQuietly(c);
+                    continue;
+                }
+                loop.execute(new Runnable() {
+                    public void run() {
+                        new NioExchange(loop, c);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * One selector thread. Work from other threads is queued and run
+     * between selects so every channel is only touched by its own loop.
+     * Exchanges waiting on an upstream deadline are kept in timed, and the
+     * select wakes up in time for the earliest of them.
+     */
+    private class EventLoop implements Runnable {
+        final Selector selector;
+        final Set<NioExchange> timed = new HashSet<NioExchange>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private volatile boolean open = true;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void close() {
+            open = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (open) {
+                    selector.select(untilNextDeadline());
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            nioEngine.accept((ServerSocketChannel) key.channel(), this);
+                        else
+                            ((NioExchange) key.attachment()).ready(key);
+                    }
+                    if (!timed.isEmpty()) {
+                        long now = System.currentTimeMillis();
+                        for (NioExchange e : new ArrayList<NioExchange>(timed))
+                            if (e.deadline <= now)
+                                e.expire();
+                    }
+                }
+            } catch (IOException ioe) {
+            } finally {
+                for (SelectionKey key : selector.keys())
+                    closeQuietly(key.channel());
+                try {
+                    selector.close();
+                } catch (IOException ioe) {
+                }
+            }
+        }
+
+        /**
+         * Milliseconds to the earliest deadline, at least 1; 0, for no
+         * timeout, when nothing is waiting on one.
+         */
+        private long untilNextDeadline() {
+            if (timed.isEmpty())
+                return 0;
+            long earliest = Long.MAX_VALUE;
+            for (NioExchange e : timed)
+                earliest = Math.min(earliest, e.deadline);
+            return Math.max(1, earliest - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * A single proxied request on the event loop. The request head is
+     * accumulated until the blank line, rewritten to origin form and sent
+     * upstream; from then on bytes are relayed in both directions until the
+     * upstream closes its side.
+     */
+    private class NioExchange {
+        private static final int HEAD_LIMIT = 64 * 1024;
+
+        private final EventLoop loop;
+        private final SocketChannel client;
+        private SelectionKey clientKey;
+        private SocketChannel upstream;
+        private SelectionKey upstreamKey;
+
+        /**
+         * Both buffers are kept in fill mode: position is the end of data.
+         * They come from the direct pool and go back when the exchange ends.
+         */
+        private ByteBuffer toUpstream = directBuffers.acquire(8192);
+        private ByteBuffer toClient = directBuffers.acquire(16 * 1024);
+
+        private boolean headDone;
+        private boolean clientEof;
+        private boolean upstreamEof;
+        private boolean closing;
+        private boolean closed;
+        private boolean tunnel;
+        private boolean responseStarted;
+        private long bodyRemaining = -1;
+        private String upstreamHost;
+        private int upstreamPort;
+        private long startNanos;
+        private long connectNanos;
+        private long firstByteNanos;
+        private long totalDeadline;
+        long deadline;
+
+        NioExchange(EventLoop loop, SocketChannel client) {
+            this.loop = loop;
+            this.client = client;
+            metrics.activeSessions.add(1);
+            try {
+                clientKey = client.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (IOException ioe) {
+                close();
+            }
+        }
+
+        void ready(SelectionKey key) {
+            try {
+                if (key == clientKey) {
+                    if (key.isReadable())
+                        readClient();
+                    if (key.isValid() && key.isWritable())
+                        writeClient();
+                } else {
+                    if (key.isConnectable()) {
+                        if (upstream.finishConnect()) {
+                            long now = System.nanoTime();
+                            metrics.connect.recordNanos(now - connectNanos);
+                            connectNanos = now;
+                            if (tunnel) {
+                                handOff();
+                                return;
+                            }
+                            arm();
+                        }
+                    } else {
+                        if (key.isReadable())
+                            readUpstream();
+                        if (key.isValid() && key.isWritable())
+                            writeUpstream();
+                    }
+                }
+                if (client.isOpen())
+                    updateInterest();
+            } catch (IOException ioe) {
+                if (key == upstreamKey)
+                    metrics.upstreamError(upstreamHost, upstreamPort);
+                if (key == upstreamKey && !responseStarted)
+                    failUpstream(ioe);
+                else
+                    close();
+            }
+        }
+
+        private void readClient() throws IOException {
+            if (!toUpstream.hasRemaining()) {
+                if (headDone || toUpstream.capacity() >= HEAD_LIMIT) {
+                    if (!headDone)
+                        fail(HTTP_BADREQUEST, "BAD REQUEST: Request head too large.");
+                    return;
+                }
+                ByteBuffer bigger = directBuffers.acquire(toUpstream.capacity() * 2);
+                toUpstream.flip();
+                bigger.put(toUpstream);
+                directBuffers.release(toUpstream);
+                toUpstream = bigger;
+            }
+            int start = toUpstream.position();
+            int read = client.read(toUpstream);
+            if (read < 0) {
+                clientEof = true;
+                if (!headDone)
+                    close();
+                return;
+            }
+            metrics.bytesIn.add(read);
+            if (startNanos == 0 && read > 0)
+                startNanos = System.nanoTime();
+            if (headDone) {
+                if (bodyRemaining >= 0) {
+                    if (read > bodyRemaining)
+                        toUpstream.position(start + (int) bodyRemaining);
+                    bodyRemaining -= toUpstream.position() - start;
+                }
+                return;
+            }
+            int end = indexOfBlankLine(toUpstream, Math.max(0, start - 3));
+            if (end >= 0) {
+                metrics.requests.add(1);
+                metrics.parse.recordNanos(System.nanoTime() - startNanos);
+                startUpstream(end);
+            }
+        }
+
+        /**
+         * The end of the head, after its blank line; lines may end in a bare
+         * LF as well as CRLF.
+         */
+        private int indexOfBlankLine(ByteBuffer b, int from) {
+            for (int i = from; i + 1 < b.position(); i++) {
+                if (b.get(i) != '\n')
+                    continue;
+                if (b.get(i + 1) == '\n')
+                    return i + 2;
+                if (b.get(i + 1) == '\r' && i + 2 < b.position() && b.get(i + 2) == '\n')
+                    return i + 3;
+            }
+            return -1;
+        }
+
+        /**
+         * Parses the request head ending at headEnd, replaces it in
+         * toUpstream with the rewritten head and starts the upstream connect.
+         */
+        private void startUpstream(int headEnd) throws IOException {
+            headDone = true;
+            byte[] headBytes = new byte[headEnd];
+            ByteBuffer dup = toUpstream.duplicate();
+            dup.flip();
+            dup.get(headBytes);
+            String head = new String(headBytes, "ISO-8859-1");
+            String[] lines = head.split("\r?\n");
+            StringTokenizer st = new StringTokenizer(lines[0]);
+            if (st.countTokens() < 2) {
+                fail(HTTP_BADREQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+                return;
+            }
+            String method = st.nextToken();
+            String target = st.nextToken();
+            String version = st.hasMoreTokens() ? st.nextToken() : "HTTP/1.0";
+            if (target.equals(metricsPath)) {
+                Response r = serveMetrics(client.socket().getInetAddress());
+                byte[] body = new byte[r.data.available()];
+                r.data.read(body);
+                respond(r.status, r.mimeType, body);
+                return;
+            }
+            if (method.equalsIgnoreCase("CONNECT")) {
+                InetSocketAddress address = connectTarget(target);
+                if (address == null) {
+                    fail(HTTP_BADREQUEST, "BAD REQUEST: CONNECT needs a host:port target.");
+                    return;
+                }
+                if (!isConnectAllowed(address.getPort())) {
+                    fail(HTTP_FORBIDDEN, "FORBIDDEN: Tunnels to port " + address.getPort() + " are not allowed.");
+                    return;
+                }
+                // Anything after the head already belongs to the tunnel
+                tunnel = true;
+                toUpstream.flip();
+                toUpstream.position(headEnd);
+                ByteBuffer rest = directBuffers.acquire(Math.max(8192, toUpstream.remaining()));
+                rest.put(toUpstream);
+                directBuffers.release(toUpstream);
+                toUpstream = rest;
+                resolve(address.getHostName(), address.getPort());
+                return;
+            }
+            URL url;
+            try {
+                url = new URL(target);
+            } catch (MalformedURLException e) {
+                fail(HTTP_BADREQUEST, "BAD REQUEST: Proxy requests need an absolute URI.");
+                return;
+            }
+            if (!url.getProtocol().equals("http")) {
+                fail(HTTP_BADREQUEST, "BAD REQUEST: Only http URIs can be proxied.");
+                return;
+            }
+
+            // The head goes out as it came, less the hop-by-hop headers; the
+            // body is relayed as is, so its framing headers stay. So does the
+            // client's version: a 1.1 client can read a chunked reply, and
+            // only a 1.1 upstream is sure to read a chunked body.
+            Headers header = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                int p = lines[i].indexOf(':');
+                if (p > 0)
+                    header.add(lines[i].substring(0, p).trim(), lines[i].substring(p + 1).trim());
+            }
+            boolean http11 = version.equals("HTTP/1.1");
+            String te = header.get("Transfer-Encoding");
+            boolean chunked = te != null && te.toLowerCase().contains("chunked");
+            if (chunked && !http11) {
+                fail(HTTP_BADREQUEST, "BAD REQUEST: Chunked request bodies need HTTP/1.1.");
+                return;
+            }
+            StringBuilder out = new StringBuilder(headEnd + 32);
+            out.append(method).append(' ').append(url.getFile().length() == 0 ? "/" : url.getFile())
+                    .append(http11 ? " HTTP/1.1\r\n" : " HTTP/1.0\r\n");
+            for (int i = 1; i < lines.length; i++) {
+                String line = lines[i];
+                int p = line.indexOf(':');
+                if (p <= 0)
+                    continue;
+                String name = line.substring(0, p).trim();
+                if (!header.isEndToEnd(name))
+                    continue;
+                if (name.equalsIgnoreCase("content-length")) {
+                    // Chunked coding frames the body instead, and the
+                    // upstream is asked to close once it has read it
+                    if (chunked)
+                        continue;
+                    try {
+                        bodyRemaining = Long.parseLong(line.substring(p + 1).trim());
+                    } catch (NumberFormatException ex) {
+                    }
+                }
+                out.append(line).append("\r\n");
+            }
+            out.append("Connection: close\r\n\r\n");
+
+            byte[] rewritten = out.toString().getBytes("ISO-8859-1");
+            toUpstream.flip();
+            toUpstream.position(headEnd);
+            ByteBuffer body = toUpstream.slice();
+            if (bodyRemaining >= 0 && body.remaining() > bodyRemaining)
+                body.limit((int) bodyRemaining);
+            if (bodyRemaining >= 0)
+                bodyRemaining -= body.remaining();
+            ByteBuffer buf = directBuffers.acquire(Math.max(8192, rewritten.length + body.remaining()));
+            buf.put(rewritten).put(body);
+            directBuffers.release(toUpstream);
+            toUpstream = buf;
+
+            resolve(url.getHost(), url.getPort() < 0 ? 80 : url.getPort());
+        }
+
+        /**
+         * Looks the host up off the loop, then connects from it.
+         */
+        private void resolve(final String host, final int port) {
+            upstreamHost = host;
+            upstreamPort = port;
+            if (nioEngine.totalTimeoutMillis > 0)
+                totalDeadline = System.currentTimeMillis() + nioEngine.totalTimeoutMillis;
+            nioEngine.resolver.execute(new Runnable() {
+                public void run() {
+                    final InetSocketAddress address = new InetSocketAddress(host, port);
+                    loop.execute(new Runnable() {
+                        public void run() {
+                            connect(address);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void connect(InetSocketAddress address) {
+            if (!client.isOpen())
+                return;
+            try {
+                if (address.isUnresolved())
+                    throw new UnknownHostException(address.getHostName());
+                connectNanos = System.nanoTime();
+                upstream = SocketChannel.open();
+                tuning.apply(upstream.socket());
+                upstream.configureBlocking(false);
+                upstream.connect(address);
+                upstreamKey = upstream.register(loop.selector, SelectionKey.OP_CONNECT, this);
+                arm();
+                updateInterest();
+            } catch (IOException ioe) {
+                metrics.upstreamError(upstreamHost, upstreamPort);
+                failUpstream(ioe);
+            }
+        }
+
+        /**
+         * Sets the deadline for the stage the upstream side is in: the
+         * connect timeout until it is connected, then the first-byte
+         * timeout, restarted whenever the response makes progress, and the
+         * total timeout throughout.
+         */
+        private void arm() {
+            long limit = !upstream.isConnected() ? nioEngine.connectTimeoutMillis : nioEngine.firstByteTimeoutMillis;
+            deadline = limit > 0 ? System.currentTimeMillis() + limit : 0;
+            if (totalDeadline != 0 && (deadline == 0 || totalDeadline < deadline))
+                deadline = totalDeadline;
+            if (deadline != 0)
+                loop.timed.add(this);
+            else
+                loop.timed.remove(this);
+        }
+
+        private void disarm() {
+            deadline = 0;
+            loop.timed.remove(this);
+        }
+
+        /**
+         * Called by the loop once the deadline has passed: answers 504 if
+         * nothing has been relayed yet, otherwise cuts the response short.
+         */
+        void expire() {
+            disarm();
+            metrics.upstreamTimeouts.add(1);
+            metrics.upstreamError(upstreamHost, upstreamPort);
+            if (responseStarted)
+                close();
+            else
+                fail(HTTP_GATEWAYTIMEOUT, "GATEWAY TIMEOUT: " + upstreamHost + ":" + upstreamPort
+                        + " did not answer in time.");
+        }
+
+        private void failUpstream(IOException ioe) {
+            if (tunnel)
+                fail(HTTP_BADGATEWAY, "BAD GATEWAY: " + ioe);
+            else
+                fail(HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+        }
+
+        /**
+         * Gives an established CONNECT tunnel over to the tunnel pump along
+         * with whatever the client sent after the head.
+         */
+        private void handOff() {
+            disarm();
+            clientKey.cancel();
+            upstreamKey.cancel();
+            closed = true;
+            metrics.activeSessions.add(-1);
+            metrics.response(HTTP_OK);
+            toUpstream.flip();
+            tunnels.open(client, upstream, toUpstream, ByteBuffer.wrap(CONNECT_ESTABLISHED));
+            releaseBuffers();
+        }
+
+        private void readUpstream() throws IOException {
+            int read = upstream.read(toClient);
+            if (read > 0)
+                arm();
+            if (read < 0)
+                upstreamEof = true;
+            else if (read > 0 && !responseStarted) {
+                responseStarted = true;
+                firstByteNanos = System.nanoTime();
+                metrics.firstByte.recordNanos(firstByteNanos - connectNanos);
+                // "HTTP/1.x 200 ..." - the relayed response is not parsed otherwise
+                if (toClient.position() >= 12)
+                    metrics.response(new String(new char[]{(char) toClient.get(9),
+                            (char) toClient.get(10), (char) toClient.get(11)}));
+            }
+        }
+
+        private void writeUpstream() throws IOException {
+            toUpstream.flip();
+            upstream.write(toUpstream);
+            toUpstream.compact();
+        }
+
+        private void writeClient() throws IOException {
+            toClient.flip();
+            int written = client.write(toClient);
+            toClient.compact();
+            metrics.bytesOut.add(written);
+            // A reply held up by a slow client is not a stalled upstream
+            if (written > 0 && responseStarted && !upstreamEof)
+                arm();
+        }
+
+        /**
+         * Recomputes the interest sets from buffer state, closing the
+         * exchange once the response has been fully delivered.
+         */
+        private void updateInterest() {
+            boolean clientPending = toClient.position() > 0;
+            if ((upstreamEof || closing) && !clientPending) {
+                close();
+                return;
+            }
+            int clientOps = 0;
+            if (!clientEof && !closing && (!headDone || bodyRemaining != 0) && toUpstream.hasRemaining())
+                clientOps |= SelectionKey.OP_READ;
+            if (clientPending)
+                clientOps |= SelectionKey.OP_WRITE;
+            clientKey.interestOps(clientOps);
+
+            if (upstreamKey != null && upstreamKey.isValid() && upstream.isConnected()) {
+                int upstreamOps = 0;
+                if (!upstreamEof && toClient.hasRemaining())
+                    upstreamOps |= SelectionKey.OP_READ;
+                if (toUpstream.position() > 0)
+                    upstreamOps |= SelectionKey.OP_WRITE;
+                upstreamKey.interestOps(upstreamOps);
+            }
+        }
+
+        /**
+         * Queues a plain-text error response and closes once it is written.
+         */
+        private void fail(String status, String msg) {
+            respond(status, MIME_PLAINTEXT, msg.getBytes());
+        }
+
+        /**
+         * Queues a response of the proxy's own and closes once it is written.
+         */
+        private void respond(String status, String mime, byte[] body) {
+            disarm();
+            metrics.response(status);
+            if (upstream != null)
+                closeQuietly(upstream);
+            byte[] head;
+            try {
+                head = ("HTTP/1.0 " + status + " \r\nContent-Type: " + mime + "\r\n\r\n").getBytes("ISO-8859-1");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            if (head.length + body.length > toClient.capacity()) {
+                directBuffers.release(toClient);
+                toClient = directBuffers.acquire(head.length + body.length);
+            }
+            toClient.clear();
+            toClient.put(head).put(body);
+            closing = true;
+            updateInterest();
+        }
+
+        private void close() {
+            if (closed)
+                return;
+            closed = true;
+            disarm();
+            closeQuietly(client);
+            if (upstream != null)
+                closeQuietly(upstream);
+            releaseBuffers();
+            metrics.activeSessions.add(-1);
+            long now = System.nanoTime();
+            if (responseStarted)
+                metrics.transfer.recordNanos(now - firstByteNanos);
+            if (startNanos != 0)
+                metrics.total.recordNanos(now - startNanos);
+        }
+
+        private void releaseBuffers() {
+            directBuffers.release(toUpstream);
+            directBuffers.release(toClient);
+            toUpstream = null;
+            toClient = null;
+        }
+    }
+
+    /**
+     * Relays CONNECT tunnels. Once a tunnel is established both of its
+     * channels are handed to this one selector thread, which copies
+     * between them through buffers from the direct pool, so an open
+     * tunnel holds no worker and no thread of its own. Tunnels
+     * quiet for longer than idleMillis in both directions are closed.
+     */
+    private class TunnelPump implements Runnable {
+        private static final int BUFFER_SIZE = 16 * 1024;
+
+        private final Selector selector;
+        private final long idleMillis;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final Set<Tunnel> tunnels = new HashSet<Tunnel>();
+        private volatile boolean open = true;
+
+        TunnelPump(long idleMillis) throws IOException {
+            this.idleMillis = idleMillis;
+            selector = Selector.open();
+            Thread t = new Thread(this, "NanoProxy-tunnels");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        /**
+         * Takes over an established tunnel. toUpstream holds client bytes
+         * that arrived with the CONNECT head, toClient the 200 reply; both
+         * ready to be read, and copied before this returns.
+         */
+        void open(final SocketChannel client, final SocketChannel upstream,
+                  ByteBuffer toUpstream, ByteBuffer toClient) {
+            final ByteBuffer up = take(toUpstream);
+            final ByteBuffer down = take(toClient);
+            tasks.add(new Runnable() {
+                public void run() {
+                    new Tunnel(client, upstream, up, down);
+                }
+            });
+            selector.wakeup();
+        }
+
+        void close() {
+            open = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            try {
+                while (open) {
+                    selector.select(1000);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid())
+                            ((Tunnel) key.attachment()).ready();
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= 1000) {
+                        lastSweep = now;
+                        for (Tunnel t : new ArrayList<Tunnel>(tunnels))
+                            if (now - t.lastActive > idleMillis) {
+                                metrics.tunnelIdleTimeouts.add(1);
+                                t.close();
+                            }
+                    }
+                }
+            } catch (IOException ioe) {
+            } finally {
+                for (Tunnel t : new ArrayList<Tunnel>(tunnels))
+                    t.close();
+                try {
+                    selector.close();
+                } catch (IOException ioe) {
+                }
+            }
+        }
+
+        private ByteBuffer take(ByteBuffer initial) {
+            ByteBuffer b = directBuffers.acquire(Math.max(BUFFER_SIZE, initial.remaining()));
+            b.put(initial);
+            return b;
+        }
+
+        private void give(ByteBuffer b) {
+            directBuffers.release(b);
+        }
+
+        /**
+         * One tunnel: each direction has a buffer kept in fill mode, read
+         * into from one side and drained into the other.
+         */
+        private class Tunnel {
+            private final SocketChannel client;
+            private final SocketChannel upstream;
+            private final ByteBuffer up;
+            private final ByteBuffer down;
+            private final long opened = System.nanoTime();
+            private SelectionKey clientKey;
+            private SelectionKey upstreamKey;
+            private boolean clientEof;
+            private boolean upstreamEof;
+            private boolean closed;
+            private long bytesUp;
+            private long bytesDown;
+            long lastActive = System.currentTimeMillis();
+
+            Tunnel(SocketChannel client, SocketChannel upstream, ByteBuffer up, ByteBuffer down) {
+                this.client = client;
+                this.upstream = upstream;
+                this.up = up;
+                this.down = down;
+                tunnels.add(this);
+                metrics.activeTunnels.add(1);
+                try {
+                    client.configureBlocking(false);
+                    upstream.configureBlocking(false);
+                    clientKey = client.register(selector, 0, this);
+                    upstreamKey = upstream.register(selector, 0, this);
+                    pump();
+                } catch (IOException ioe) {
+                    close();
+                }
+            }
+
+            void ready() {
+                try {
+                    pump();
+                } catch (IOException ioe) {
+                    close();
+                }
+            }
+
+            /**
+             * Moves whatever can move without blocking, in both directions,
+             * then waits for the channels that could not keep up.
+             */
+            private void pump() throws IOException {
+                drain(up, upstream);
+                drain(down, client);
+                if (!clientEof)
+                    clientEof = relay(client, up, upstream);
+                if (!upstreamEof)
+                    upstreamEof = relay(upstream, down, client);
+                // Pass a half-close on once everything before it is written
+                if (clientEof && up.position() == 0 && !upstream.socket().isOutputShutdown())
+                    upstream.socket().shutdownOutput();
+                if (upstreamEof && down.position() == 0 && !client.socket().isOutputShutdown())
+                    client.socket().shutdownOutput();
+                if (clientEof && upstreamEof && up.position() == 0 && down.position() == 0) {
+                    close();
+                    return;
+                }
+                int clientOps = 0;
+                int upstreamOps = 0;
+                if (!clientEof && up.hasRemaining())
+                    clientOps |= SelectionKey.OP_READ;
+                if (!upstreamEof && down.hasRemaining())
+                    upstreamOps |= SelectionKey.OP_READ;
+                if (up.position() > 0)
+                    upstreamOps |= SelectionKey.OP_WRITE;
+                if (down.position() > 0)
+                    clientOps |= SelectionKey.OP_WRITE;
+                clientKey.interestOps(clientOps);
+                upstreamKey.interestOps(upstreamOps);
+            }
+
+            /**
+             * Reads from one side for as long as the other keeps taking the
+             * bytes. Returns true at end of stream.
+             */
+            private boolean relay(SocketChannel from, ByteBuffer buf, SocketChannel to) throws IOException {
+                while (buf.hasRemaining()) {
+                    int read = from.read(buf);
+                    if (read < 0)
+                        return true;
+                    if (read == 0)
+                        return false;
+                    lastActive = System.currentTimeMillis();
+                    if (from == client)
+                        bytesUp += read;
+                    else
+                        bytesDown += read;
+                    drain(buf, to);
+                    if (buf.position() > 0)
+                        return false;
+                }
+                return false;
+            }
+
+            private void drain(ByteBuffer buf, SocketChannel to) throws IOException {
+                if (buf.position() == 0)
+                    return;
+                buf.flip();
+                to.write(buf);
+                buf.compact();
+            }
+
+            void close() {
+                if (closed)
+                    return;
+                closed = true;
+                closeQuietly(client);
+                closeQuietly(upstream);
+                tunnels.remove(this);
+                give(up);
+                give(down);
+                metrics.activeTunnels.add(-1);
+                metrics.tunnelBytesUp.add(bytesUp);
+                metrics.tunnelBytesDown.add(bytesDown);
+                metrics.tunnelDuration.recordNanos(System.nanoTime() - opened);
+            }
+        }
+    }
+
+    /**
+     * Parses a Content-Length value; -1 if it is missing or not a valid
+     * length, which callers take as an unknown one.
+     */
+    static long contentLength(String value) {
+        if (value == null)
+            return -1;
+        try {
+            long length = Long.parseLong(value.trim());
+            return length < 0 ? -1 : length;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException ioe) {
+        }
+    }
+
+    private Response serveWeb(String uri, String method, HeaderSource header, InputStream body, long length)
+            throws IOException {
+        return toResponse(fetch(method, new URL(uri), header, body, length));
+    }
+
+    public Response serveWeb(String uri, String method) throws IOException {
+        return serveWeb(uri, method, new Headers());
+    }
+
+    /**
+     * Serves a bodiless request. GETs are answered from the response cache
+     * when it holds a fresh copy and offered to it otherwise. A stale copy
+     * is revalidated upstream and, if it is confirmed with a 304, served
+     * again without its body crossing the network twice.
+     */
+    private Response serveWeb(String uri, String method, HeaderSource header) throws IOException {
+        boolean useCache = (responseCache != null || diskCache != null) && method.equalsIgnoreCase("GET")
+                && ResponseCache.isCacheable(header);
+        CacheEntry staleEntry = null;
+        DiskEntry staleDisk = null;
+        if (useCache) {
+            long now = System.currentTimeMillis();
+            CacheEntry e = responseCache == null ? null : responseCache.get(uri, header);
+            if (e != null && e.expires > now)
+                return fromCache(uri, e, header);
+            DiskEntry d = diskCache == null ? null : diskCache.get(uri, header);
+            if (d != null && d.expires > now) {
+                Response r = fromCache(d, header);
+                if (r != null)
+                    return r;
+                // Its segment was dropped after the lookup
+                diskCache.lost();
+                d = null;
+            }
+            // Clients with validators of their own get the upstream's answer to those
+            if (!ResponseCache.isConditional(header)) {
+                staleEntry = e;
+                staleDisk = e == null ? d : null;
+            }
+        }
+        HeaderSource upstreamHeader = header;
+        if (staleEntry != null)
+            upstreamHeader = new ValidatedRequest(header, ResponseCache.validators(staleEntry.header));
+        else if (staleDisk != null)
+            upstreamHeader = new ValidatedRequest(header, ResponseCache.validators(staleDisk.header));
+
+        Coalescer.Flight flight = null;
+        if (coalescer != null && method.equalsIgnoreCase("GET") && ResponseCache.isCacheable(header)) {
+            flight = coalescer.lead(uri, header);
+            if (flight == null) {
+                UpstreamReply shared = coalescer.follow(uri, header);
+                if (shared != null)
+                    return toResponse(shared);
+            }
+        }
+        UpstreamReply reply;
+        try {
+            reply = fetch(method, new URL(uri), upstreamHeader, null, -1);
+        } catch (IOException ioe) {
+            if (flight != null)
+                flight.fail();
+            throw ioe;
+        }
+        if (flight != null)
+            flight.publish(reply);
+        if (reply.code == 304 && upstreamHeader != header) {
+            reply.body.read();
+            if (staleEntry != null)
+                return fromCache(uri, responseCache.refresh(uri, header, staleEntry, reply.header), header);
+            DiskEntry d = diskCache.refresh(staleDisk, reply.header);
+            Response r = d == null ? null : fromCache(d, header);
+            if (r != null)
+                return r;
+            // The stored copy went with its segment, so fetch the body after all
+            reply = fetch(method, new URL(uri), header, null, -1);
+        }
+        if (useCache) {
+            // Small bodies go to the heap tier, large or unsized ones to disk
+            long length = contentLength(reply.header.get("Content-Length"));
+            boolean small = length >= 0 && responseCache != null && length <= responseCache.maxEntryBytes;
+            if (diskCache == null || small)
+                responseCache.offer(uri, header, reply);
+            else
+                diskCache.offer(uri, header, reply);
+        }
+        return toResponse(reply);
+    }
+
+    private Response fromCache(String uri, CacheEntry e, HeaderSource request) throws IOException {
+        Response r = notModified(e.header, request);
+        if (r == null) {
+            if (compressor != null && compressor.cacheCompressed && Compressor.acceptsGzip(request)
+                    && compressor.isEligible(e.status, null, e.header, e.body.length))
+                e = responseCache.compressed(uri, request, e, compressor);
+            r = new Response(e.status, null, new ByteArrayInputStream(e.body));
+            r.header = e.header.endToEnd();
+            r.header.set("Content-Length", String.valueOf(e.body.length));
+        }
+        return r;
+    }
+
+    /**
+     * Null if the body has gone from disk since the entry was looked up.
+     */
+    private Response fromCache(DiskEntry d, HeaderSource request) throws IOException {
+        Response r = notModified(d.header, request);
+        if (r == null) {
+            FileRegionInputStream body = diskCache.open(d);
+            if (body == null)
+                return null;
+            r = new Response(d.status, null, body);
+            r.header = d.header.endToEnd();
+            r.header.set("Content-Length", String.valueOf(d.length));
+        }
+        return r;
+    }
+
+    /**
+     * A 304 for a client whose validators match the stored response, with
+     * the headers RFC 7232 section 4.1 asks for; null if they don't match.
+     */
+    private Response notModified(Headers stored, HeaderSource request) {
+        if (!ResponseCache.isNotModified(request, stored))
+            return null;
+        Response r = new Response(HTTP_NOTMODIFIED, null, null);
+        String[] names = {"Cache-Control", "Content-Location", "Date", "ETag", "Expires", "Last-Modified", "Vary"};
+        for (int i = 0; i < names.length; i++)
+            if (stored.get(names[i]) != null)
+                r.header.add(names[i], stored.get(names[i]));
+        return r;
+    }
+
+    /**
+     * Relays the upstream status and end-to-end headers as they came. A
+     * reply that can't have a body (to HEAD, or a 204 or 304) is read to
+     * its end here so its connection goes back to the pool, and keeps
+     * whatever Content-Length or Transfer-Encoding the upstream gave, as
+     * those describe the body a GET would get.
+     */
+    private Response toResponse(UpstreamReply reply) throws IOException {
+        Response r = new Response(reply.status, null, reply.body);
+        r.header = reply.header.endToEnd();
+        if (reply.bodiless) {
+            reply.body.read();
+            r.data = null;
+            String te = reply.header.get("Transfer-Encoding");
+            if (te != null && reply.code != 204)
+                r.header.add("Transfer-Encoding", te);
+        }
+        return r;
+    }
+
+    /**
+     * Sends a request upstream within the configured deadlines. Idempotent
+     * requests without a body are sent again if an attempt fails, as far as
+     * the retry budget allows, or hedged when that is turned on.
+     */
+    private UpstreamReply fetch(String method, URL url, HeaderSource header, InputStream body, long length)
+            throws IOException {
+        if (!url.getProtocol().equals("http"))
+            throw new IOException("Only http URIs can be proxied: " + url);
+        long deadline = totalTimeoutMillis > 0 ? System.currentTimeMillis() + totalTimeoutMillis : 0;
+        boolean idempotent = body == null && isIdempotent(method);
+        Headers hedged = hedger != null && idempotent ? snapshot(header) : null;
+        retryBudget.deposit();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (hedged != null) {
+                    UpstreamReply reply = hedger.fetch(method, url, hedged, deadline);
+                    if (reply != null)
+                        return reply;
+                }
+                return exchange(method, url, header, body, length, deadline);
+            } catch (IOException ioe) {
+                if (!idempotent || attempt >= upstreamRetries || !retryBudget.withdraw())
+                    throw ioe;
+                // Full jitter, so retries of a burst of failures spread out
+                long backoff = (long) (Math.random() * (retryBackoffMillis << Math.min(attempt, 10)));
+                if (deadline != 0 && System.currentTimeMillis() + backoff >= deadline)
+                    throw ioe;
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException();
+                }
+                metrics.upstreamRetries.add(1);
+            }
+        }
+    }
+
+    static boolean isIdempotent(String method) {
+        return method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("HEAD")
+                || method.equalsIgnoreCase("OPTIONS") || method.equalsIgnoreCase("PUT")
+                || method.equalsIgnoreCase("DELETE") || method.equalsIgnoreCase("TRACE");
+    }
+
+    /**
+     * Copies the headers that would be forwarded, for a request that may
+     * still be going out after its parser has moved on to the next one.
+     */
+    static Headers snapshot(HeaderSource header) throws IOException {
+        ByteArrayOutputStream forwarded = new ByteArrayOutputStream(512);
+        header.forward(forwarded);
+        Headers copy = new Headers();
+        StringTokenizer st = new StringTokenizer(forwarded.toString("ISO-8859-1"), "\r\n");
+        while (st.hasMoreTokens()) {
+            String line = st.nextToken();
+            int p = line.indexOf(':');
+            copy.add(line.substring(0, p), line.substring(p + 1).trim());
+        }
+        return copy;
+    }
+
+    /**
+     * Sends one request upstream over a pooled connection. A reused
+     * connection that turns out to be dead before the reply arrives is
+     * dropped and the request goes out again on the next one, unless a
+     * streamed body has already been consumed, or the method isn't
+     * idempotent. A body of unknown length (-1) is sent chunked. Upstream
+     * timeouts surface as GatewayTimeoutException.
+     */
+    private UpstreamReply exchange(String method, URL url, HeaderSource header, InputStream body, long length,
+                                   long deadline) throws IOException {
+        String host = url.getHost();
+        int port = url.getPort() < 0 ? 80 : url.getPort();
+        BackendPool pool = backendPools == null ? null : backendPool(host);
+        while (true) {
+            Backend node = null;
+            if (pool != null) {
+                node = pool.pick();
+                host = node.host;
+                port = node.port;
+            }
+            UpstreamConnection c;
+            try {
+                c = upstreamPool.acquire(host, port, deadline);
+            } catch (IOException ioe) {
+                metrics.upstreamError(host, port);
+                if (ioe instanceof GatewayTimeoutException)
+                    metrics.upstreamTimeouts.add(1);
+                if (node != null)
+                    pool.failed(node);
+                throw ioe;
+            }
+            if (!c.reused)
+                metrics.connect.recordNanos(c.connectNanos);
+            if (node != null)
+                c.serve(node);
+            try {
+                long sent = System.nanoTime();
+                c.limit(firstByteTimeoutMillis, deadline);
+                c.writeRequest(method, url, header, body, length);
+                UpstreamReply reply = c.readReply(method);
+                long elapsed = System.nanoTime() - sent;
+                metrics.firstByte.recordNanos(elapsed);
+                if (node != null && reply.code >= 500)
+                    pool.failed(node);
+                else if (node != null)
+                    pool.succeeded(node, elapsed);
+                return reply;
+            } catch (BadRequestException bre) {
+                // The client's body was malformed, not the upstream's reply
+                c.release(false);
+                throw bre;
+            } catch (IOException ioe) {
+                metrics.upstreamError(host, port);
+                if (node != null)
+                    pool.failed(node);
+                c.release(false);
+                if (ioe instanceof SocketTimeoutException) {
+                    metrics.upstreamTimeouts.add(1);
+                    throw new GatewayTimeoutException(host + ":" + port + " did not answer in time.");
+                }
+                if (!c.reused || body != null || !isIdempotent(method))
+                    throw ioe;
+            } catch (RuntimeException re) {
+                // Never keep the host's permit past a failed exchange
+                c.release(false);
+                throw re;
+            }
+        }
+    }
+
+    /**
+     * Status line, headers and framed body of an upstream response. Reading
+     * the body to the end hands the connection back to its pool.
+     */
+    static class UpstreamReply {
+        int code;
+        String status;
+        Headers header = new Headers();
+        InputStream body;
+        boolean keepAlive;
+        boolean bodiless;
+    }
+
+    /**
+     * Shared in-memory cache of GET responses. Keys are spread over
+     * lock-striped segments so lookups of different URIs rarely contend,
+     * and each segment evicts its least recently used entries to stay
+     * within its share of maxBytes.
+     */
+    static class ResponseCache {
+        private static final int SEGMENTS = 16;
+
+        private final Segment[] segments = new Segment[SEGMENTS];
+        private final ConcurrentHashMap<String, String[]> varyByUri = new ConcurrentHashMap<String, String[]>();
+        final long maxEntryBytes;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+        final AtomicLong revalidations = new AtomicLong();
+
+        ResponseCache(long maxBytes, long maxEntryBytes) {
+            long perSegment = Math.max(1, maxBytes / SEGMENTS);
+            this.maxEntryBytes = Math.min(maxEntryBytes, perSegment);
+            for (int i = 0; i < SEGMENTS; i++)
+                segments[i] = new Segment(perSegment);
+        }
+
+        /**
+         * Returns the entry matching the request's Vary headers, or null.
+         * Stale entries are only kept, and returned, if they carry a
+         * validator to revalidate them with; only fresh ones count as hits.
+         */
+        CacheEntry get(String uri, HeaderSource request) {
+            String key = key(uri, varyByUri.get(uri), request);
+            long now = System.currentTimeMillis();
+            CacheEntry e = segmentFor(key).get(key, now);
+            if (e != null && e.expires > now)
+                hits.incrementAndGet();
+            else
+                misses.incrementAndGet();
+            return e;
+        }
+
+        /**
+         * The gzipped variant kept next to an entry, made on first use. It
+         * is stored with the expiry of the entry it was made from, which a
+         * refresh or a new response always changes, so a variant of an
+         * older body is never served.
+         */
+        CacheEntry compressed(String uri, HeaderSource request, CacheEntry e, Compressor compressor)
+                throws IOException {
+            String key = key(uri, e.vary, request) + "\ngzip";
+            Segment segment = segmentFor(key);
+            CacheEntry v = segment.get(key, Long.MIN_VALUE);
+            if (v != null && v.expires == e.expires)
+                return v;
+            Headers header = e.header.endToEnd();
+            compressor.encoded(header);
+            v = new CacheEntry(e.code, e.status, header, compressor.compress(e.body), e.expires, e.vary);
+            segment.put(key, v);
+            return v;
+        }
+
+        /**
+         * Brings a stale entry up to date with the headers of the 304 that
+         * confirmed it and stores it again for as long as they allow.
+         */
+        CacheEntry refresh(String uri, HeaderSource request, CacheEntry stale, Headers update) {
+            revalidations.incrementAndGet();
+            Headers merged = merge(stale.header, update);
+            long now = System.currentTimeMillis();
+            long lifetime = freshnessLifetime(merged, now);
+            CacheEntry e = new CacheEntry(stale.code, stale.status, merged, stale.body,
+                    now + Math.max(0, lifetime), stale.vary);
+            String key = key(uri, stale.vary, request);
+            if (lifetime > 0 || hasValidator(merged))
+                put(uri, key, e);
+            else
+                segmentFor(key).remove(key);
+            return e;
+        }
+
+        void put(String uri, String key, CacheEntry e) {
+            varyByUri.put(uri, e.vary);
+            segmentFor(key).put(key, e);
+        }
+
+        /**
+         * Wraps the reply body so it is stored once read to the end, if the
+         * response allows it.
+         */
+        void offer(String uri, HeaderSource request, UpstreamReply reply) {
+            if (reply.code != 200)
+                return;
+            String[] vary = varyNames(reply.header);
+            long lifetime = freshnessLifetime(reply.header, System.currentTimeMillis());
+            if (vary == null || lifetime <= 0)
+                return;
+            String length = reply.header.get("Content-Length");
+            long expected = contentLength(length);
+            // A length that doesn't parse can't be trusted to frame a copy
+            if ((length != null && expected < 0) || expected > maxEntryBytes)
+                return;
+            reply.body = new CachingInputStream(reply.body, uri, key(uri, vary, request), reply,
+                    System.currentTimeMillis() + lifetime, vary, expected);
+        }
+
+        private Segment segmentFor(String key) {
+            int h = key.hashCode();
+            h ^= (h >>> 16);
+            return segments[h & (SEGMENTS - 1)];
+        }
+
+        static String key(String uri, String[] vary, HeaderSource request) {
+            if (vary == null || vary.length == 0)
+                return uri;
+            StringBuilder sb = new StringBuilder(uri);
+            for (int i = 0; i < vary.length; i++)
+                sb.append('\n').append(value(request, vary[i]));
+            return sb.toString();
+        }
+
+        static String value(HeaderSource request, String name) {
+            String value = request.get(name);
+            return value == null ? "" : value;
+        }
+
+        /**
+         * Requests asking to bypass caches, or carrying credentials, are
+         * neither looked up nor stored.
+         */
+        static boolean isCacheable(HeaderSource request) {
+            String cc = value(request, "cache-control").toLowerCase();
+            return cc.indexOf("no-store") < 0 && cc.indexOf("no-cache") < 0
+                    && value(request, "pragma").toLowerCase().indexOf("no-cache") < 0
+                    && request.get("authorization") == null;
+        }
+
+        /**
+         * Lower-cased header names listed in Vary, or null for "Vary: *".
+         */
+        static String[] varyNames(Headers header) {
+            String vary = header.get("Vary");
+            if (vary == null)
+                return new String[0];
+            if (vary.trim().equals("*"))
+                return null;
+            String[] names = vary.toLowerCase().split(",");
+            for (int i = 0; i < names.length; i++)
+                names[i] = names[i].trim();
+            return names;
+        }
+
+        /**
+         * How long, in milliseconds, a response may be served from a shared
+         * cache: s-maxage over max-age over Expires. Zero or less means it
+         * must not be stored.
+         */
+        static long freshnessLifetime(Headers header, long now) {
+            String cc = header.get("Cache-Control");
+            if (cc != null) {
+                long maxAge = -1;
+                long sMaxAge = -1;
+                String[] directives = cc.toLowerCase().split(",");
+                for (int i = 0; i < directives.length; i++) {
+                    String d = directives[i].trim();
+                    if (d.equals("no-store") || d.equals("no-cache") || d.equals("private"))
+                        return -1;
+                    if (d.startsWith("s-maxage="))
+                        sMaxAge = parseSeconds(d.substring(9));
+                    else if (d.startsWith("max-age="))
+                        maxAge = parseSeconds(d.substring(8));
+                }
+                if (sMaxAge >= 0)
+                    return sMaxAge * 1000;
+                if (maxAge >= 0)
+                    return maxAge * 1000;
+            }
+            String expires = header.get("Expires");
+            if (expires != null) {
+                long date = parseDate(header.get("Date"));
+                return parseDate(expires) - (date < 0 ? now : date);
+            }
+            return -1;
+        }
+
+        static boolean hasValidator(Headers stored) {
+            return stored.get("ETag") != null || stored.get("Last-Modified") != null;
+        }
+
+        /**
+         * True if the client sent validators of its own, which then go
+         * upstream untouched.
+         */
+        static boolean isConditional(HeaderSource request) {
+            return request.get("If-None-Match") != null || request.get("If-Modified-Since") != null
+                    || request.get("If-Match") != null || request.get("If-Unmodified-Since") != null
+                    || request.get("If-Range") != null;
+        }
+
+        /**
+         * The conditional headers that ask the upstream whether a stored
+         * response is still current.
+         */
+        static Headers validators(Headers stored) {
+            Headers conditions = new Headers();
+            if (stored.get("ETag") != null)
+                conditions.add("If-None-Match", stored.get("ETag"));
+            if (stored.get("Last-Modified") != null)
+                conditions.add("If-Modified-Since", stored.get("Last-Modified"));
+            return conditions;
+        }
+
+        /**
+         * Whether the client's own validators still match a stored response
+         * (RFC 7232 section 6): If-None-Match with the weak comparison if
+         * present, otherwise If-Modified-Since against Last-Modified.
+         */
+        static boolean isNotModified(HeaderSource request, Headers stored) {
+            String match = request.get("If-None-Match");
+            if (match != null) {
+                String etag = stored.get("ETag");
+                if (etag == null)
+                    return false;
+                String[] tags = match.split(",");
+                for (int i = 0; i < tags.length; i++) {
+                    String tag = tags[i].trim();
+                    if (tag.equals("*") || opaque(tag).equals(opaque(etag)))
+                        return true;
+                }
+                return false;
+            }
+            long since = parseDate(request.get("If-Modified-Since"));
+            long modified = parseDate(stored.get("Last-Modified"));
+            return since >= 0 && modified >= 0 && modified <= since;
+        }
+
+        private static String opaque(String etag) {
+            etag = etag.trim();
+            return etag.startsWith("W/") ? etag.substring(2) : etag;
+        }
+
+        /**
+         * The stored headers with those of a 304 laid over them (RFC 7234
+         * section 4.3.4). The stored body keeps its own length.
+         */
+        static Headers merge(Headers stored, Headers update) {
+            Headers merged = new Headers();
+            for (int i = 0; i < stored.size(); i++)
+                if (update.get(stored.name(i)) == null || stored.name(i).equalsIgnoreCase("Content-Length"))
+                    merged.add(stored.name(i), stored.value(i));
+            for (int i = 0; i < update.size(); i++)
+                if (!update.name(i).equalsIgnoreCase("Content-Length"))
+                    merged.add(update.name(i), update.value(i));
+            return merged;
+        }
+
+        private static long parseSeconds(String value) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+
+        private class Segment {
+            private final long maxBytes;
+            private long bytes;
+            private final LinkedHashMap<String, CacheEntry> map = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+
+            Segment(long maxBytes) {
+                this.maxBytes = maxBytes;
+            }
+
+            synchronized CacheEntry get(String key, long now) {
+                CacheEntry e = map.get(key);
+                if (e != null && e.expires <= now && !hasValidator(e.header)) {
+                    remove(key);
+                    return null;
+                }
+                return e;
+            }
+
+            synchronized void remove(String key) {
+                CacheEntry e = map.remove(key);
+                if (e != null)
+                    bytes -= e.size();
+            }
+
+            synchronized void put(String key, CacheEntry e) {
+                CacheEntry old = map.put(key, e);
+                if (old != null)
+                    bytes -= old.size();
+                bytes += e.size();
+                Iterator<CacheEntry> it = map.values().iterator();
+                while (bytes > maxBytes && it.hasNext()) {
+                    CacheEntry eldest = it.next();
+                    it.remove();
+                    bytes -= eldest.size();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Passes the upstream body through while keeping a copy, which is
+         * stored as soon as the whole body has been seen (so a client that
+         * asks again right away already hits). Bodies that outgrow
+         * maxEntryBytes are simply passed through.
+         */
+        private class CachingInputStream extends FilterInputStream {
+            private final String uri;
+            private final String key;
+            private final UpstreamReply reply;
+            private final long expires;
+            private final String[] vary;
+            private final long expectedLength;
+            private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+            CachingInputStream(InputStream in, String uri, String key, UpstreamReply reply,
+                               long expires, String[] vary, long expectedLength) {
+                super(in);
+                this.uri = uri;
+                this.key = key;
+                this.reply = reply;
+                this.expires = expires;
+                this.vary = vary;
+                this.expectedLength = expectedLength;
+            }
+
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (copy == null)
+                    return read;
+                if (read > 0 && copy.size() + read > maxEntryBytes) {
+                    copy = null;
+                    return read;
+                }
+                if (read > 0)
+                    copy.write(b, off, read);
+                if (read < 0 || copy.size() == expectedLength) {
+                    put(uri, key, new CacheEntry(reply.code, reply.status, reply.header,
+                            copy.toByteArray(), expires, vary));
+                    copy = null;
+                }
+                return read;
+            }
+        }
+    }
+
+    /**
+     * A client request with the proxy's own validators for a stale entry
+     * added on the way upstream.
+     */
+    static class ValidatedRequest implements HeaderSource {
+        private final HeaderSource request;
+        private final Headers validators;
+
+        ValidatedRequest(HeaderSource request, Headers validators) {
+            this.request = request;
+            this.validators = validators;
+        }
+
+        public String get(String name) {
+            String value = validators.get(name);
+            return value != null ? value : request.get(name);
+        }
+
+        public void forward(OutputStream out) throws IOException {
+            request.forward(out);
+            validators.forward(out);
+        }
+    }
+
+    /**
+     * A stored response.
+     */
+    static class CacheEntry {
+        final int code;
+        final String status;
+        final Headers header;
+        final byte[] body;
+        final long expires;
+        final String[] vary;
+
+        CacheEntry(int code, String status, Headers header, byte[] body, long expires, String[] vary) {
+            this.code = code;
+            this.status = status;
+            this.header = header;
+            this.body = body;
+            this.expires = expires;
+            this.vary = vary;
+        }
+
+        /**
+         * Body plus a rough allowance for the headers and bookkeeping.
+         */
+        long size() {
+            return body.length + 64L * header.size() + 128;
+        }
+    }
+
+    /**
+     * Second cache tier for responses too big for the heap. Bodies are
+     * appended to segment files and an index journal records where each
+     * one lives, so the cache survives restarts. When the directory grows
+     * past maxBytes the oldest segment is dropped as a whole. Hits are read
+     * back through their own FileChannel and go to the client socket with
+     * transferTo.
+     */
+    static class DiskCache {
+        private static final byte PUT = 1;
+        private static final byte DROP = 2;
+
+        private final File dir;
+        private final long maxBytes;
+        private final long segmentBytes;
+        final long maxEntryBytes;
+        private final ConcurrentHashMap<String, DiskEntry> index = new ConcurrentHashMap<String, DiskEntry>();
+        private final ConcurrentHashMap<String, String[]> varyByUri = new ConcurrentHashMap<String, String[]>();
+        private final TreeMap<Integer, Long> segments = new TreeMap<Integer, Long>();
+        private DataOutputStream journal;
+        private int activeSegment;
+        private long totalBytes;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+        final AtomicLong revalidations = new AtomicLong();
+
+        DiskCache(File dir, long maxBytes, long segmentBytes) throws IOException {
+            this.dir = dir;
+            this.maxBytes = maxBytes;
+            this.segmentBytes = Math.min(segmentBytes, Math.max(1, maxBytes / 4));
+            this.maxEntryBytes = this.segmentBytes;
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Can't create cache directory " + dir);
+            replay();
+        }
+
+        /**
+         * Rebuilds the index from the journal, then rewrites the journal with
+         * only the entries that are still live.
+         */
+        private void replay() throws IOException {
+            File file = new File(dir, "index");
+            long now = System.currentTimeMillis();
+            if (file.exists()) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    while (true) {
+                        byte op = in.readByte();
+                        if (op == PUT) {
+                            DiskEntry e = DiskEntry.read(in);
+                            if ((e.expires > now || ResponseCache.hasValidator(e.header))
+                                    && segmentFile(e.segment).length() >= e.offset + e.length)
+                                index.put(e.key, e);
+                            else
+                                index.remove(e.key);
+                        } else if (op == DROP) {
+                            removeSegmentEntries(in.readInt());
+                        } else
+                            break;
+                    }
+                } catch (EOFException eof) {
+                    // A torn last record is simply ignored
+                } finally {
+                    in.close();
+                }
+            }
+
+            File[] files = dir.listFiles();
+            for (int i = 0; files != null && i < files.length; i++) {
+                String name = files[i].getName();
+                if (name.startsWith("segment-")) {
+                    int id = Integer.parseInt(name.substring(8, name.length() - 4));
+                    segments.put(id, files[i].length());
+                    totalBytes += files[i].length();
+                    activeSegment = Math.max(activeSegment, id);
+                } else if (name.startsWith("tmp-")) {
+                    files[i].delete();
+                }
+            }
+            activeSegment++;
+
+            File compacted = new File(dir, "index.tmp");
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)));
+            for (DiskEntry e : index.values()) {
+                journal.writeByte(PUT);
+                e.write(journal);
+                varyByUri.put(e.uri, e.vary);
+            }
+            journal.close();
+            if (!compacted.renameTo(file)) {
+                file.delete();
+                compacted.renameTo(file);
+            }
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            enforceQuota();
+        }
+
+        /**
+         * Returns the entry matching the request, stale or not, as long as
+         * a stale one can be revalidated.
+         */
+        DiskEntry get(String uri, HeaderSource request) {
+            String key = ResponseCache.key(uri, varyByUri.get(uri), request);
+            DiskEntry e = index.get(key);
+            if (e != null && e.expires > System.currentTimeMillis()) {
+                hits.incrementAndGet();
+                return e;
+            }
+            misses.incrementAndGet();
+            return e != null && ResponseCache.hasValidator(e.header) ? e : null;
+        }
+
+        /**
+         * Records a stale entry as confirmed by a 304, with its headers
+         * merged. Returns null if the entry has gone in the meantime, along
+         * with its segment.
+         */
+        synchronized DiskEntry refresh(DiskEntry stale, Headers update) throws IOException {
+            if (index.get(stale.key) != stale)
+                return null;
+            revalidations.incrementAndGet();
+            DiskEntry e = new DiskEntry();
+            e.key = stale.key;
+            e.uri = stale.uri;
+            e.vary = stale.vary;
+            e.segment = stale.segment;
+            e.offset = stale.offset;
+            e.length = stale.length;
+            e.code = stale.code;
+            e.status = stale.status;
+            e.header = ResponseCache.merge(stale.header, update);
+            long now = System.currentTimeMillis();
+            e.expires = now + Math.max(0, ResponseCache.freshnessLifetime(e.header, now));
+            append(record(e));
+            index.put(e.key, e);
+            return e;
+        }
+
+        /**
+         * Opens a stored body for reading, or returns null if its segment was
+         * dropped after the entry was looked up; the entry goes with it.
+         */
+        FileRegionInputStream open(DiskEntry e) throws IOException {
+            RandomAccessFile file;
+            try {
+                file = new RandomAccessFile(segmentFile(e.segment), "r");
+            } catch (FileNotFoundException fnf) {
+                index.remove(e.key, e);
+                return null;
+            }
+            return new FileRegionInputStream(file.getChannel(), e.offset, e.length);
+        }
+
+        /**
+         * Takes back the hit counted for an entry that could not be opened.
+         */
+        void lost() {
+            hits.decrementAndGet();
+            misses.incrementAndGet();
+        }
+
+        /**
+         * Wraps the reply body so it is spooled to disk while it streams to
+         * the client, if the response allows it.
+         */
+        void offer(String uri, HeaderSource request, UpstreamReply reply) throws IOException {
+            if (reply.code != 200)
+                return;
+            String[] vary = ResponseCache.varyNames(reply.header);
+            long lifetime = ResponseCache.freshnessLifetime(reply.header, System.currentTimeMillis());
+            if (vary == null || lifetime <= 0)
+                return;
+            String length = reply.header.get("Content-Length");
+            long expected = contentLength(length);
+            if ((length != null && expected < 0) || expected > maxEntryBytes)
+                return;
+            DiskEntry e = new DiskEntry();
+            e.uri = uri;
+            e.key = ResponseCache.key(uri, vary, request);
+            e.vary = vary;
+            e.code = reply.code;
+            e.status = reply.status;
+            e.header = reply.header;
+            e.expires = System.currentTimeMillis() + lifetime;
+            reply.body = new SpoolingInputStream(reply.body, e, expected);
+        }
+
+        /**
+         * Appends a spooled body to the active segment and records it.
+         */
+        private synchronized void commit(DiskEntry e, File spool) throws IOException {
+            long size = spool.length();
+            Long used = segments.get(activeSegment);
+            if (used != null && used + size > segmentBytes)
+                activeSegment++;
+            used = segments.get(activeSegment);
+            e.segment = activeSegment;
+            e.length = size;
+
+            FileChannel from = new FileInputStream(spool).getChannel();
+            FileChannel to = new FileOutputStream(segmentFile(activeSegment), true).getChannel();
+            try {
+                // The file's own end, which is past bytes of an earlier
+                // commit that failed before it was recorded
+                e.offset = to.position();
+                byte[] record = record(e);
+                long done = 0;
+                while (done < size)
+                    done += from.transferTo(done, size - done, to);
+                append(record);
+            } finally {
+                from.close();
+                to.close();
+            }
+            segments.put(activeSegment, e.offset + size);
+            totalBytes += e.offset + size - (used == null ? 0 : used);
+            varyByUri.put(e.uri, e.vary);
+            index.put(e.key, e);
+            enforceQuota();
+        }
+
+        /**
+         * Serialises an entry as a journal record up front, so one that can't
+         * be written, such as a header value too long for writeUTF, fails
+         * before any of it reaches the journal.
+         */
+        private static byte[] record(DiskEntry e) throws IOException {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(PUT);
+            e.write(out);
+            out.flush();
+            return record.toByteArray();
+        }
+
+        private void append(byte[] record) throws IOException {
+            journal.write(record);
+            journal.flush();
+        }
+
+        private void enforceQuota() throws IOException {
+            while (totalBytes > maxBytes && segments.size() > 1) {
+                int oldest = segments.firstKey();
+                totalBytes -= segments.remove(oldest);
+                evictions.addAndGet(removeSegmentEntries(oldest));
+                journal.writeByte(DROP);
+                journal.writeInt(oldest);
+                journal.flush();
+                // Readers that already opened the file keep their handle
+                segmentFile(oldest).delete();
+            }
+        }
+
+        private int removeSegmentEntries(int segment) {
+            int removed = 0;
+            Iterator<DiskEntry> it = index.values().iterator();
+            while (it.hasNext())
+                if (it.next().segment == segment) {
+                    it.remove();
+                    removed++;
+                }
+            return removed;
+        }
+
+        private File segmentFile(int id) {
+            return new File(dir, "segment-" + id + ".dat");
+        }
+
+        synchronized void close() {
+            try {
+                journal.close();
+            } catch (IOException ioe) {
+            }
+        }
+
+        /**
+         * Copies the body into a spool file as it is read; once the whole
+         * body has gone by it is committed to a segment.
+         */
+        private class SpoolingInputStream extends FilterInputStream {
+            private final DiskEntry entry;
+            private final long expectedLength;
+            private File spool;
+            private OutputStream copy;
+            private long copied;
+
+            SpoolingInputStream(InputStream in, DiskEntry entry, long expectedLength) throws IOException {
+                super(in);
+                this.entry = entry;
+                this.expectedLength = expectedLength;
+                spool = File.createTempFile("tmp-", ".dat", dir);
+                copy = new BufferedOutputStream(new FileOutputStream(spool), 64 * 1024);
+            }
+
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (copy == null)
+                    return read;
+                try {
+                    if (read > 0) {
+                        copied += read;
+                        if (copied > maxEntryBytes) {
+                            abandon();
+                            return read;
+                        }
+                        copy.write(b, off, read);
+                    }
+                    if (read < 0 || copied == expectedLength) {
+                        copy.close();
+                        copy = null;
+                        commit(entry, spool);
+                        spool.delete();
+                    }
+                } catch (IOException ioe) {
+                    abandon();
+                }
+                return read;
+            }
+
+            public void close() throws IOException {
+                if (copy != null)
+                    abandon();
+                super.close();
+            }
+
+            private void abandon() {
+                if (copy != null) {
+                    try {
+                        copy.close();
+                    } catch (IOException ioe) {
+                    }
+                    copy = null;
+                }
+                spool.delete();
+            }
+        }
+    }
+
+    /**
+     * Where a cached body lives on disk, plus what is needed to answer with it.
+     */
+    static class DiskEntry {
+        String key;
+        String uri;
+        String[] vary;
+        int segment;
+        long offset;
+        long length;
+        long expires;
+        int code;
+        String status;
+        Headers header;
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(key);
+            out.writeUTF(uri);
+            out.writeInt(vary.length);
+            for (int i = 0; i < vary.length; i++)
+                out.writeUTF(vary[i]);
+            out.writeInt(segment);
+            out.writeLong(offset);
+            out.writeLong(length);
+            out.writeLong(expires);
+            out.writeInt(code);
+            out.writeUTF(status);
+            out.writeInt(header.size());
+            for (int i = 0; i < header.size(); i++) {
+                out.writeUTF(header.name(i));
+                out.writeUTF(header.value(i));
+            }
+        }
+
+        static DiskEntry read(DataInputStream in) throws IOException {
+            DiskEntry e = new DiskEntry();
+            e.key = in.readUTF();
+            e.uri = in.readUTF();
+            e.vary = new String[in.readInt()];
+            for (int i = 0; i < e.vary.length; i++)
+                e.vary[i] = in.readUTF();
+            e.segment = in.readInt();
+            e.offset = in.readLong();
+            e.length = in.readLong();
+            e.expires = in.readLong();
+            e.code = in.readInt();
+            e.status = in.readUTF();
+            e.header = new Headers();
+            int headers = in.readInt();
+            for (int i = 0; i < headers; i++)
+                e.header.add(in.readUTF(), in.readUTF());
+            return e;
+        }
+    }
+
+    /**
+     * A slice of a file, read with positional reads so the channel is never
+     * shared state; transfer() sends it with transferTo instead.
+     */
+    static class FileRegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        FileRegionInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (read < 0)
+                throw new EOFException("Cache segment is shorter than its index says");
+            position += read;
+            remaining -= read;
+            return read;
+        }
+
+        long transferTo(WritableByteChannel target) throws IOException {
+            long sent = 0;
+            while (remaining > 0) {
+                long n = channel.transferTo(position, remaining, target);
+                if (n <= 0 && channel.size() <= position)
+                    throw new EOFException("Cache segment is shorter than its index says");
+                position += n;
+                remaining -= n;
+                sent += n;
+            }
+            return sent;
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Collapses concurrent GETs for the same URI into one upstream request.
+     * The first caller leads and fetches; callers arriving while its
+     * response is in flight follow and read the leader's body from a shared
+     * buffer as it streams in. Followers give up and fetch on their own if
+     * the leader has no response within timeoutMillis, or if the response
+     * can't be shared.
+     */
+    static class Coalescer {
+        private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+        private final long timeoutMillis;
+        private final long maxBytes;
+        final AtomicLong coalesced = new AtomicLong();
+
+        Coalescer(long timeoutMillis, long maxBytes) {
+            this.timeoutMillis = timeoutMillis;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Registers the caller as leader for the URI and returns its flight,
+         * or returns null if another flight already leads (see follow()).
+         */
+        Flight lead(String uri, HeaderSource request) {
+            Flight flight = new Flight(uri, request);
+            return flights.putIfAbsent(uri, flight) == null ? flight : null;
+        }
+
+        /**
+         * Waits for the current leader of the URI and returns its reply with
+         * a body of its own, or null if the caller should fetch alone.
+         */
+        UpstreamReply follow(String uri, HeaderSource request) throws IOException {
+            Flight flight = flights.get(uri);
+            if (flight == null)
+                return null;
+            UpstreamReply reply = flight.await(request);
+            if (reply != null)
+                coalesced.incrementAndGet();
+            return reply;
+        }
+
+        /**
+         * Whether a reply may go to clients other than the one it was fetched
+         * for: fresh for a while or marked public, and neither no-cache,
+         * no-store nor private.
+         */
+        static boolean isPublic(Headers header) {
+            String cc = header.get("Cache-Control");
+            boolean marked = false;
+            if (cc != null) {
+                String[] directives = cc.toLowerCase().split(",");
+                for (int i = 0; i < directives.length; i++) {
+                    String d = directives[i].trim();
+                    if (d.equals("no-store") || d.startsWith("no-cache") || d.startsWith("private"))
+                        return false;
+                    if (d.equals("public"))
+                        marked = true;
+                }
+            }
+            return marked || ResponseCache.freshnessLifetime(header, System.currentTimeMillis()) > 0;
+        }
+
+        class Flight {
+            private final String uri;
+            private final HeaderSource request;
+            private UpstreamReply reply;
+            private String[] vary;
+            private String[] varyValues;
+            private boolean published;
+            private boolean shared;
+            private boolean done;
+            private boolean failed;
+            private byte[] buf;
+            private int size;
+            // Not a monitor: followers wait here for seconds, and a virtual
+            // thread waiting on a monitor keeps its carrier thread pinned
+            private final ReentrantLock lock = new ReentrantLock();
+            private final Condition changed = lock.newCondition();
+
+            Flight(String uri, HeaderSource request) {
+                this.uri = uri;
+                this.request = request;
+            }
+
+            /**
+             * Called by the leader once the upstream reply is in. Shareable
+             * bodies are teed into the flight buffer as the leader reads them.
+             */
+            void publish(UpstreamReply r) {
+                lock.lock();
+                try {
+                    reply = r;
+                    published = true;
+                    shared = isShareable(r);
+                    if (shared) {
+                        // The leader's parser moves on to its next request, so
+                        // keep the values followers are matched against
+                        varyValues = new String[vary.length];
+                        for (int i = 0; i < vary.length; i++)
+                            varyValues[i] = ResponseCache.value(request, vary[i]);
+                        buf = new byte[(int) contentLength(r.header.get("Content-Length"))];
+                        r.body = new TeeInputStream(r.body);
+                        if (buf.length == 0)
+                            finish();
+                    } else
+                        flights.remove(uri, this);
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /**
+             * Called by the leader when the upstream fetch itself failed.
+             */
+            void fail() {
+                lock.lock();
+                try {
+                    failed = true;
+                    flights.remove(uri, this);
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            private boolean isShareable(UpstreamReply r) {
+                long length = contentLength(r.header.get("Content-Length"));
+                vary = ResponseCache.varyNames(r.header);
+                return r.code == 200 && vary != null && length >= 0 && length <= maxBytes
+                        && r.header.get("Set-Cookie") == null && isPublic(r.header)
+                        && (request.get("cookie") == null || keysCookie());
+            }
+
+            /**
+             * A reply that doesn't vary on Cookie was made for one client's
+             * cookies, so only cookieless requests may share it.
+             */
+            private boolean keysCookie() {
+                return Arrays.asList(vary).contains("cookie");
+            }
+
+            UpstreamReply await(HeaderSource follower) throws IOException {
+                lock.lock();
+                try {
+                    long deadline = System.currentTimeMillis() + timeoutMillis;
+                    while (!published && !failed) {
+                        long left = deadline - System.currentTimeMillis();
+                        if (left <= 0)
+                            return null;
+                        changed.await(left, TimeUnit.MILLISECONDS);
+                    }
+                    if (failed || !shared || (follower.get("cookie") != null && !keysCookie()))
+                        return null;
+                    for (int i = 0; i < vary.length; i++)
+                        if (!varyValues[i].equals(ResponseCache.value(follower, vary[i])))
+                            return null;
+                    UpstreamReply copy = new UpstreamReply();
+                    copy.code = reply.code;
+                    copy.status = reply.status;
+                    copy.header = reply.header;
+                    copy.keepAlive = true;
+                    copy.body = new FollowerInputStream();
+                    return copy;
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            private void append(byte[] b, int off, int len) {
+                lock.lock();
+                try {
+                    len = Math.min(len, buf.length - size);
+                    System.arraycopy(b, off, buf, size, len);
+                    size += len;
+                    if (size == buf.length)
+                        finish();
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            private void finish() {
+                lock.lock();
+                try {
+                    done = true;
+                    flights.remove(uri, this);
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /**
+             * The leader's body: every chunk it reads is appended to the
+             * flight. Should the leader's client go away early, the rest is
+             * still read so followers aren't left hanging.
+             */
+            private class TeeInputStream extends FilterInputStream {
+                TeeInputStream(InputStream in) {
+                    super(in);
+                }
+
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read;
+                    try {
+                        read = in.read(b, off, len);
+                    } catch (IOException ioe) {
+                        fail();
+                        throw ioe;
+                    }
+                    if (read > 0)
+                        append(b, off, read);
+                    else if (read < 0 && !done)
+                        fail();
+                    return read;
+                }
+
+                public void close() throws IOException {
+                    byte[] rest = new byte[8192];
+                    try {
+                        while (!done && !failed && read(rest, 0, rest.length) >= 0)
+                            ;
+                    } finally {
+                        super.close();
+                    }
+                }
+            }
+
+            /**
+             * Reads the shared buffer, waiting for the leader to fill it.
+             */
+            private class FollowerInputStream extends InputStream {
+                private int position;
+
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    lock.lock();
+                    try {
+                        long deadline = System.currentTimeMillis() + timeoutMillis;
+                        while (position == size && !done && !failed) {
+                            long left = deadline - System.currentTimeMillis();
+                            if (left <= 0)
+                                throw new SocketTimeoutException("Coalesced response stalled");
+                            changed.await(left, TimeUnit.MILLISECONDS);
+                        }
+                        if (position == size) {
+                            if (failed)
+                                throw new IOException("Coalesced upstream request failed");
+                            return -1;
+                        }
+                        int n = Math.min(len, size - position);
+                        System.arraycopy(buf, position, b, off, n);
+                        position += n;
+                        return n;
+                    } catch (InterruptedException ie) {
+                        throw new InterruptedIOException();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Optional gzip stage on the response path. Responses are compressed
+     * while they stream to the client, so nothing is buffered whole, and
+     * the deflaters are pooled since each holds sizeable native buffers.
+     * Brotli would need a native library, so gzip is the only coding offered.
+     */
+    static class Compressor {
+        private static final int MAX_IDLE = 64;
+
+        private final long minBytes;
+        private final String[] types;
+        private final int level;
+        final boolean cacheCompressed;
+        private final ArrayBlockingQueue<Deflater> idle = new ArrayBlockingQueue<Deflater>(MAX_IDLE);
+        final AtomicLong compressed = new AtomicLong();
+
+        Compressor(Config config) {
+            minBytes = config.compressMinBytes;
+            types = config.compressibleTypes;
+            level = config.compressLevel;
+            cacheCompressed = config.cacheCompressed;
+        }
+
+        /**
+         * True if the request's Accept-Encoding takes gzip with a non-zero q.
+         */
+        static boolean acceptsGzip(HeaderSource request) {
+            String accept = request.get("Accept-Encoding");
+            if (accept == null)
+                return false;
+            String[] codings = accept.split(",");
+            for (int i = 0; i < codings.length; i++) {
+                String coding = codings[i].trim();
+                int semi = coding.indexOf(';');
+                String name = (semi < 0 ? coding : coding.substring(0, semi)).trim();
+                if (!name.equalsIgnoreCase("gzip") && !name.equalsIgnoreCase("x-gzip") && !name.equals("*"))
+                    continue;
+                if (semi < 0)
+                    return true;
+                String q = coding.substring(semi + 1).trim();
+                try {
+                    return !q.startsWith("q=") || Double.parseDouble(q.substring(2).trim()) > 0;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * A successful, not yet encoded response of a compressible type
+         * that is either big enough or of unknown length (-1).
+         */
+        boolean isEligible(String status, String mime, Headers header, long length) {
+            if (!status.startsWith("200") || header.get("Content-Encoding") != null)
+                return false;
+            String cc = header.get("Cache-Control");
+            if (cc != null && cc.toLowerCase().indexOf("no-transform") >= 0)
+                return false;
+            String type = header.get("Content-Type");
+            if (type == null)
+                type = mime;
+            if (type == null)
+                return false;
+            int semi = type.indexOf(';');
+            type = (semi < 0 ? type : type.substring(0, semi)).trim();
+            return isListed(type, types) && (length < 0 || length >= minBytes);
+        }
+
+        /**
+         * Compresses a response for a client that accepts gzip, if it is
+         * worth it.
+         */
+        void compress(Response r) throws IOException {
+            if (r.data == null)
+                return;
+            String length = r.header.get("Content-Length");
+            long known = length != null ? contentLength(length)
+                    : r.data instanceof ByteArrayInputStream ? r.data.available() : -1;
+            if (!isEligible(r.status, r.mimeType, r.header, known))
+                return;
+            encoded(r.header);
+            r.data = new GzipInputStream(r.data, this);
+        }
+
+        /**
+         * Compresses a whole body, for the cached variant.
+         */
+        byte[] compress(byte[] body) throws IOException {
+            InputStream in = new GzipInputStream(new ByteArrayInputStream(body), this);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+            transfer(in, out, null, new byte[8192]);
+            in.close();
+            return out.toByteArray();
+        }
+
+        /**
+         * Fixes the headers up for the gzipped representation: no length,
+         * since it is only known once sent, Vary on Accept-Encoding, and a
+         * weak ETag as the bytes now differ.
+         */
+        void encoded(Headers header) {
+            compressed.incrementAndGet();
+            header.remove("Content-Length");
+            header.set("Content-Encoding", "gzip");
+            String vary = header.get("Vary");
+            if (vary == null)
+                header.set("Vary", "Accept-Encoding");
+            else if (vary.toLowerCase().indexOf("accept-encoding") < 0 && !vary.trim().equals("*"))
+                header.set("Vary", vary + ", Accept-Encoding");
+            String etag = header.get("ETag");
+            if (etag != null && !etag.startsWith("W/"))
+                header.set("ETag", "W/" + etag);
+        }
+
+        Deflater take() {
+            Deflater d = idle.poll();
+            return d != null ? d : new Deflater(level, true);
+        }
+
+        void give(Deflater d) {
+            d.reset();
+            if (!idle.offer(d))
+                d.end();
+        }
+    }
+
+    /**
+     * Gzips another stream as it is read: the fixed header, the raw deflate
+     * stream, then the CRC and length trailer. The deflater goes back to
+     * its pool once the trailer is out or the stream is closed.
+     */
+    static class GzipInputStream extends FilterInputStream {
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final Compressor pool;
+        private final CRC32 crc = new CRC32();
+        private final byte[] input = new byte[8192];
+        private Deflater deflater;
+        private byte[] pending = HEADER;
+        private int pendingPos;
+
+        GzipInputStream(InputStream in, Compressor pool) {
+            super(in);
+            this.pool = pool;
+            deflater = pool.take();
+        }
+
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (true) {
+                if (pending != null) {
+                    int n = Math.min(len, pending.length - pendingPos);
+                    System.arraycopy(pending, pendingPos, b, off, n);
+                    pendingPos += n;
+                    if (pendingPos == pending.length)
+                        pending = null;
+                    return n;
+                }
+                if (deflater == null)
+                    return -1;
+                int n = deflater.deflate(b, off, len);
+                if (n > 0)
+                    return n;
+                if (deflater.finished()) {
+                    pending = trailer();
+                    pendingPos = 0;
+                    release();
+                } else if (deflater.needsInput()) {
+                    int read = in.read(input, 0, input.length);
+                    if (read < 0) {
+                        deflater.finish();
+                    } else if (read > 0) {
+                        crc.update(input, 0, read);
+                        deflater.setInput(input, 0, read);
+                    }
+                }
+            }
+        }
+
+        private byte[] trailer() {
+            long c = crc.getValue();
+            long size = deflater.getBytesRead();
+            return new byte[]{(byte) c, (byte) (c >> 8), (byte) (c >> 16), (byte) (c >> 24),
+                    (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)};
+        }
+
+        private void release() {
+            if (deflater != null) {
+                pool.give(deflater);
+                deflater = null;
+            }
+        }
+
+        public int available() {
+            return pending != null ? pending.length - pendingPos : 0;
+        }
+
+        public void close() throws IOException {
+            release();
+            super.close();
+        }
+    }
+
+    /**
+     * Counters and latency histograms for the request lifecycle, rendered
+     * in the Prometheus text format. Everything is striped so that workers
+     * recording at the same time rarely touch the same cache line.
+     */
+    static class Metrics {
+        static final String MIME_TYPE = "text/plain; version=0.0.4";
+
+        final StripedCounter requests = new StripedCounter();
+        final StripedCounter activeSessions = new StripedCounter();
+        final StripedCounter bytesIn = new StripedCounter();
+        final StripedCounter bytesOut = new StripedCounter();
+        final StripedCounter acceptErrors = new StripedCounter();
+        final StripedCounter clientErrors = new StripedCounter();
+        final StripedCounter upstreamTimeouts = new StripedCounter();
+        final StripedCounter upstreamRetries = new StripedCounter();
+        final StripedCounter upstreamHedges = new StripedCounter();
+        final StripedCounter upstreamHedgeWins = new StripedCounter();
+        final LatencyHistogram acceptWait = new LatencyHistogram();
+        final LatencyHistogram parse = new LatencyHistogram();
+        final LatencyHistogram connect = new LatencyHistogram();
+        final LatencyHistogram firstByte = new LatencyHistogram();
+        final LatencyHistogram transfer = new LatencyHistogram();
+        final LatencyHistogram total = new LatencyHistogram();
+        final StripedCounter activeTunnels = new StripedCounter();
+        final StripedCounter tunnelBytesUp = new StripedCounter();
+        final StripedCounter tunnelBytesDown = new StripedCounter();
+        final StripedCounter tunnelIdleTimeouts = new StripedCounter();
+        final LatencyHistogram tunnelDuration = new LatencyHistogram();
+        private final ConcurrentHashMap<String, StripedCounter> responses = new ConcurrentHashMap<String, StripedCounter>();
+        private final ConcurrentHashMap<String, StripedCounter> upstreamErrors = new ConcurrentHashMap<String, StripedCounter>();
+        private final ConcurrentHashMap<String, StripedCounter> rejections = new ConcurrentHashMap<String, StripedCounter>();
+
+        /**
+         * Counts a response by the code at the start of its status line.
+         */
+        void response(String status) {
+            int sp = status.indexOf(' ');
+            counter(responses, sp < 0 ? status : status.substring(0, sp)).add(1);
+        }
+
+        void upstreamError(String host, int port) {
+            counter(upstreamErrors, host + ":" + port).add(1);
+        }
+
+        void rejected(String reason) {
+            counter(rejections, reason).add(1);
+        }
+
+        private static StripedCounter counter(ConcurrentHashMap<String, StripedCounter> map, String label) {
+            StripedCounter c = map.get(label);
+            if (c == null) {
+                StripedCounter created = new StripedCounter();
+                c = map.putIfAbsent(label, created);
+                if (c == null)
+                    c = created;
+            }
+            return c;
+        }
+
+        void render(StringBuilder sb) {
+            counter(sb, "nanoproxy_requests_total", "Requests read from clients.", requests.sum());
+            gauge(sb, "nanoproxy_active_sessions", "Client connections being served.", activeSessions.sum());
+            counter(sb, "nanoproxy_bytes_received_total", "Bytes read from clients.", bytesIn.sum());
+            counter(sb, "nanoproxy_bytes_sent_total", "Response bytes written to clients, without chunk framing.", bytesOut.sum());
+            counter(sb, "nanoproxy_accept_errors_total", "Failed accepts on the listening socket.", acceptErrors.sum());
+            counter(sb, "nanoproxy_client_write_errors_total", "Responses that could not be written to the client.", clientErrors.sum());
+            counter(sb, "nanoproxy_upstream_timeouts_total", "Upstream exchanges that missed a deadline.", upstreamTimeouts.sum());
+            counter(sb, "nanoproxy_upstream_retries_total", "Upstream requests sent again after a failure.", upstreamRetries.sum());
+            counter(sb, "nanoproxy_upstream_hedges_total", "Second copies sent of slow upstream requests.", upstreamHedges.sum());
+            counter(sb, "nanoproxy_upstream_hedge_wins_total", "Hedged requests answered first by the second copy.", upstreamHedgeWins.sum());
+            labelled(sb, "nanoproxy_responses_total", "Responses sent, by status code.", "code", responses);
+            labelled(sb, "nanoproxy_upstream_errors_total", "Failed upstream exchanges, by upstream host.", "host", upstreamErrors);
+            labelled(sb, "nanoproxy_client_rejections_total", "Requests refused by per-client limits, by limit.", "limit", rejections);
+            acceptWait.render(sb, "nanoproxy_accept_wait_seconds", "Time accepted connections waited for a worker.");
+            parse.render(sb, "nanoproxy_request_parse_seconds", "Time from the first byte of a request to its parsed head.");
+            connect.render(sb, "nanoproxy_upstream_connect_seconds", "Time to open new upstream connections.");
+            firstByte.render(sb, "nanoproxy_upstream_first_byte_seconds", "Time from sending a request upstream to its response head.");
+            transfer.render(sb, "nanoproxy_response_transfer_seconds", "Time to write response bodies to clients.");
+            total.render(sb, "nanoproxy_request_duration_seconds", "Time from the first byte of a request to the end of its response.");
+            gauge(sb, "nanoproxy_active_tunnels", "Open CONNECT tunnels.", activeTunnels.sum());
+            counter(sb, "nanoproxy_tunnel_sent_bytes_total", "Bytes relayed from clients to upstreams by closed tunnels.",
+                    tunnelBytesUp.sum());
+            counter(sb, "nanoproxy_tunnel_received_bytes_total", "Bytes relayed from upstreams to clients by closed tunnels.",
+                    tunnelBytesDown.sum());
+            counter(sb, "nanoproxy_tunnel_idle_timeouts_total", "Tunnels closed for being idle.", tunnelIdleTimeouts.sum());
+            tunnelDuration.render(sb, "nanoproxy_tunnel_duration_seconds", "Lifetime of closed CONNECT tunnels.");
+        }
+
+        static void counter(StringBuilder sb, String name, String help, long value) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(value).append('\n');
+        }
+
+        static void gauge(StringBuilder sb, String name, String help, long value) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(" gauge\n");
+            sb.append(name).append(' ').append(value).append('\n');
+        }
+
+        private static void labelled(StringBuilder sb, String name, String help, String label,
+                                     ConcurrentHashMap<String, StripedCounter> map) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            for (Map.Entry<String, StripedCounter> e : new TreeMap<String, StripedCounter>(map).entrySet())
+                sb.append(name).append('{').append(label).append("=\"").append(e.getKey()).append("\"} ")
+                        .append(e.getValue().sum()).append('\n');
+        }
+    }
+
+    /**
+     * A counter spread over padded cells picked by thread, summed on read.
+     * Workers are long-lived pool threads with consecutive ids, so they
+     * land on different cells without any hashing.
+     */
+    static class StripedCounter {
+        static final int STRIPES = stripes();
+        private static final int PAD = 8;
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+        private static int stripes() {
+            int n = 1;
+            while (n < Runtime.getRuntime().availableProcessors() * 2)
+                n <<= 1;
+            return n;
+        }
+
+        static int stripe() {
+            return (int) Thread.currentThread().getId() & (STRIPES - 1);
+        }
+
+        void add(long x) {
+            cells.getAndAdd(stripe() * PAD, x);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++)
+                sum += cells.get(i * PAD);
+            return sum;
+        }
+    }
+
+    /**
+     * Log-linear histogram of microsecond latencies in the manner of
+     * HdrHistogram: every power of two is split into 32 linear sub-buckets,
+     * so any recorded value is known to within about 3% up to hours, in a
+     * fixed 9KB per stripe and without allocating when recording.
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = (40 - SUB_BITS + 2) * SUB;
+        private static final long MAX = (1L << 40) - 1;
+        /**
+         * Bucket bounds of the rendered histogram, in microseconds.
+         */
+        private static final long[] BOUNDS = {100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000,
+                100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000};
+        private static final String[] LE = {"0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01",
+                "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"};
+
+        private static final int STRIPES = Math.min(8, StripedCounter.STRIPES);
+
+        private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+        private final StripedCounter sum = new StripedCounter();
+
+        void recordNanos(long nanos) {
+            record(nanos / 1000);
+        }
+
+        void record(long micros) {
+            long v = Math.min(Math.max(micros, 0), MAX);
+            counts.getAndIncrement((StripedCounter.stripe() & (STRIPES - 1)) * BUCKETS + index(v));
+            sum.add(v);
+        }
+
+        static int index(long v) {
+            if (v < SUB)
+                return (int) v;
+            int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return (shift + 1) * SUB + (int) (v >>> shift) - SUB;
+        }
+
+        /**
+         * Smallest value that falls into the given bucket.
+         */
+        static long lowest(int index) {
+            int group = index / SUB;
+            int sub = index % SUB;
+            return group == 0 ? sub : (long) (sub + SUB) << (group - 1);
+        }
+
+        long[] snapshot() {
+            long[] merged = new long[BUCKETS];
+            for (int s = 0; s < STRIPES; s++)
+                for (int i = 0; i < BUCKETS; i++)
+                    merged[i] += counts.get(s * BUCKETS + i);
+            return merged;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile, in
+         * microseconds, or -1 if fewer than minCount values were recorded.
+         */
+        long percentile(double percent, long minCount) {
+            long[] merged = snapshot();
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                count += merged[i];
+            if (count == 0 || count < minCount)
+                return -1;
+            long rank = (long) Math.ceil(count * percent / 100);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += merged[i];
+                if (cumulative >= rank)
+                    return i + 1 < BUCKETS ? lowest(i + 1) - 1 : MAX;
+            }
+            return MAX;
+        }
+
+        void render(StringBuilder sb, String name, String help) {
+            long[] merged = snapshot();
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            int i = 0;
+            for (int b = 0; b < BOUNDS.length; b++) {
+                while (i < BUCKETS && lowest(i) <= BOUNDS[b])
+                    cumulative += merged[i++];
+                sb.append(name).append("_bucket{le=\"").append(LE[b]).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            while (i < BUCKETS)
+                cumulative += merged[i++];
+            sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            sb.append(name).append("_sum ").append(sum.sum() / 1e6).append('\n');
+            sb.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * The backend nodes of one virtual host in reverse-proxy mode. Nodes
+     * that failed their health probes or were ejected as outliers are
+     * passed over, unless that leaves none, in which case all of them are
+     * tried rather than failing every request.
+     */
+    static class BackendPool {
+        private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+            protected Random initialValue() {
+                return new Random();
+            }
+        };
+
+        final String name;
+        final Backend[] nodes;
+        private final String balancer;
+        private final int ejectAfterErrors;
+        private final double ejectSlowerThan;
+        private final long ejectMillis;
+        private final AtomicInteger next = new AtomicInteger();
+
+        BackendPool(String name, String[] addresses, Config config) {
+            this.name = name;
+            nodes = new Backend[addresses.length];
+            for (int i = 0; i < addresses.length; i++) {
+                InetSocketAddress a = connectTarget(addresses[i].indexOf(':') < 0 ? addresses[i] + ":80" : addresses[i]);
+                if (a == null)
+                    throw new IllegalArgumentException("Bad backend address for " + name + ": " + addresses[i]);
+                nodes[i] = new Backend(a.getHostName(), a.getPort());
+            }
+            if (nodes.length == 0)
+                throw new IllegalArgumentException("No backends for " + name);
+            balancer = config.balancer;
+            ejectAfterErrors = config.ejectAfterErrors;
+            ejectSlowerThan = config.ejectSlowerThan;
+            ejectMillis = config.ejectMillis;
+        }
+
+        Backend pick() {
+            long now = System.currentTimeMillis();
+            int start = next.getAndIncrement() & Integer.MAX_VALUE;
+            Backend picked = null;
+            if (BALANCE_ROUND_ROBIN.equals(balancer)) {
+                picked = available(start, now);
+            } else if (BALANCE_LEAST_OUTSTANDING.equals(balancer)) {
+                // Scan from a rotating start so ties don't all land on one node
+                for (int i = 0; i < nodes.length; i++) {
+                    Backend b = nodes[(start + i) % nodes.length];
+                    if (b.isAvailable(now) && (picked == null || b.outstanding.get() < picked.outstanding.get()))
+                        picked = b;
+                }
+            } else {
+                Random r = random.get();
+                Backend a = available(r.nextInt(nodes.length), now);
+                Backend b = available(r.nextInt(nodes.length), now);
+                picked = a == null || b == null ? a
+                        : a.outstanding.get() != b.outstanding.get()
+                        ? (a.outstanding.get() < b.outstanding.get() ? a : b)
+                        : (a.latencyMicros <= b.latencyMicros ? a : b);
+            }
+            return picked != null ? picked : nodes[start % nodes.length];
+        }
+
+        /**
+         * The first available node from the given index on, or null.
+         */
+        private Backend available(int from, long now) {
+            for (int i = 0; i < nodes.length; i++) {
+                Backend b = nodes[(from + i) % nodes.length];
+                if (b.isAvailable(now))
+                    return b;
+            }
+            return null;
+        }
+
+        void succeeded(Backend b, long nanos) {
+            b.failures.set(0);
+            long micros = Math.max(1, nanos / 1000);
+            long avg = b.latencyMicros;
+            // Exponentially weighted, so a node that slows down shows it within a few requests
+            b.latencyMicros = avg == 0 ? micros : avg + (micros - avg) / 8;
+        }
+
+        void failed(Backend b) {
+            if (b.failures.incrementAndGet() >= ejectAfterErrors)
+                eject(b, System.currentTimeMillis());
+        }
+
+        /**
+         * Takes a node out of rotation for ejectMillis times the number of
+         * times it has been ejected, but never the last available one.
+         */
+        synchronized void eject(Backend b, long now) {
+            if (!b.isAvailable(now))
+                return;
+            int others = 0;
+            for (int i = 0; i < nodes.length; i++)
+                if (nodes[i] != b && nodes[i].isAvailable(now))
+                    others++;
+            if (others == 0)
+                return;
+            b.ejections++;
+            b.ejectedUntil = now + ejectMillis * Math.min(b.ejections, 10);
+            b.failures.set(0);
+        }
+
+        /**
+         * Periodic pass: returns nodes whose ejection ran out with a clean
+         * slate, forgives the ejection count of nodes that stayed in for a
+         * whole period, and ejects those much slower than the rest.
+         */
+        void sweep(long now) {
+            long total = 0;
+            int measured = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                Backend b = nodes[i];
+                if (b.ejectedUntil != 0 && b.ejectedUntil <= now) {
+                    b.ejectedUntil = 0;
+                    b.returned = now;
+                    b.latencyMicros = 0;
+                    b.failures.set(0);
+                } else if (b.ejections > 0 && b.ejectedUntil == 0 && now - b.returned > ejectMillis) {
+                    b.ejections = 0;
+                }
+                if (b.isAvailable(now) && b.latencyMicros > 0) {
+                    total += b.latencyMicros;
+                    measured++;
+                }
+            }
+            if (ejectSlowerThan <= 0 || measured < 2)
+                return;
+            for (int i = 0; i < nodes.length; i++) {
+                Backend b = nodes[i];
+                if (!b.isAvailable(now) || b.latencyMicros == 0)
+                    continue;
+                double rest = (double) (total - b.latencyMicros) / (measured - 1);
+                if (b.latencyMicros > ejectSlowerThan * rest)
+                    eject(b, now);
+            }
+        }
+
+        /**
+         * One sample per node of the named nanoproxy_backend_ gauge.
+         */
+        void render(StringBuilder sb, String gauge, long now) {
+            for (int i = 0; i < nodes.length; i++) {
+                Backend b = nodes[i];
+                long value = gauge.equals("available") ? (b.isAvailable(now) ? 1 : 0)
+                        : gauge.equals("outstanding") ? b.outstanding.get() : b.ejections;
+                sb.append("nanoproxy_backend_").append(gauge).append("{pool=\"").append(name)
+                        .append("\",backend=\"").append(b.host).append(':').append(b.port).append("\"} ")
+                        .append(value).append('\n');
+            }
+        }
+    }
+
+    /**
+     * One node of a backend pool and what the balancer knows about it.
+     */
+    static class Backend {
+        final String host;
+        final int port;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        volatile boolean healthy = true;
+        volatile long ejectedUntil;
+        volatile long latencyMicros;
+        volatile int ejections;
+        long returned;
+        int failedProbes;
+
+        Backend(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        boolean isAvailable(long now) {
+            return healthy && (ejectedUntil == 0 || ejectedUntil <= now);
+        }
+    }
+
+    /**
+     * Size-classed pool of socket buffers. A thread looks in a small cache
+     * of its own first, then in the shared free list of the size class, and
+     * allocates only when both are empty; buffers larger than the biggest
+     * class are allocated for the caller and dropped on release. Each pool
+     * keeps at most maxBytes of idle buffers. With leak detection on, every
+     * lease remembers where it was taken, and giving back a buffer that
+     * isn't out is an error.
+     */
+    static class BufferPool {
+        static final int[] SIZES = {4 * 1024, 16 * 1024, 64 * 1024};
+        private static final int LOCAL_MAX = 4;
+
+        private final boolean direct;
+        private final List<ArrayBlockingQueue<ByteBuffer>> free = new ArrayList<ArrayBlockingQueue<ByteBuffer>>();
+        private final ThreadLocal<List<ArrayDeque<ByteBuffer>>> local;
+        private final Map<ByteBuffer, Throwable> leases;
+        final AtomicLong allocations = new AtomicLong();
+        final AtomicInteger leased = new AtomicInteger();
+
+        BufferPool(boolean direct, long maxBytes, boolean localCaches, boolean detectLeaks) {
+            this.direct = direct;
+            for (int size : SIZES)
+                free.add(new ArrayBlockingQueue<ByteBuffer>(
+                        (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / SIZES.length / size))));
+            local = !localCaches ? null : new ThreadLocal<List<ArrayDeque<ByteBuffer>>>() {
+                protected List<ArrayDeque<ByteBuffer>> initialValue() {
+                    List<ArrayDeque<ByteBuffer>> caches = new ArrayList<ArrayDeque<ByteBuffer>>(SIZES.length);
+                    for (int i = 0; i < SIZES.length; i++)
+                        caches.add(new ArrayDeque<ByteBuffer>(LOCAL_MAX));
+                    return caches;
+                }
+            };
+            // ByteBuffer equality is by content, so leases are kept by identity
+            leases = detectLeaks ? new IdentityHashMap<ByteBuffer, Throwable>() : null;
+        }
+
+        /**
+         * A cleared buffer of at least size bytes.
+         */
+        ByteBuffer acquire(int size) {
+            int c = 0;
+            while (c < SIZES.length && SIZES[c] < size)
+                c++;
+            ByteBuffer b = null;
+            if (c < SIZES.length) {
+                if (local != null)
+                    b = local.get().get(c).poll();
+                if (b == null)
+                    b = free.get(c).poll();
+            }
+            if (b == null) {
+                allocations.incrementAndGet();
+                int capacity = c < SIZES.length ? SIZES[c] : size;
+                b = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            }
+            leased.incrementAndGet();
+            if (leases != null)
+                synchronized (leases) {
+                    leases.put(b, new Throwable("Buffer of " + b.capacity() + " bytes taken here"));
+                }
+            return b;
+        }
+
+        /**
+         * Gives back a buffer from acquire(); null is ignored.
+         */
+        void release(ByteBuffer b) {
+            if (b == null)
+                return;
+            if (leases != null)
+                synchronized (leases) {
+                    if (leases.remove(b) == null)
+                        throw new IllegalStateException("Buffer given back twice or not taken from this pool");
+                }
+            leased.decrementAndGet();
+            int c = Arrays.binarySearch(SIZES, b.capacity());
+            if (c < 0)
+                return;
+            b.clear();
+            if (local != null) {
+                ArrayDeque<ByteBuffer> mine = local.get().get(c);
+                if (mine.size() < LOCAL_MAX) {
+                    mine.push(b);
+                    return;
+                }
+            }
+            free.get(c).offer(b);
+        }
+
+        List<Throwable> leases() {
+            if (leases == null)
+                return new ArrayList<Throwable>();
+            synchronized (leases) {
+                return new ArrayList<Throwable>(leases.values());
+            }
+        }
+    }
+
+    /**
+     * Per-client-address admission: a request rate, a number of requests in
+     * progress and a response bandwidth. The rate and the bandwidth are
+     * token buckets kept as a single theoretical arrival time each (GCRA),
+     * so a client is checked with one read and one compare-and-set and no
+     * lock. Entries of clients gone quiet are swept as new ones arrive.
+     */
+    static class ClientLimiter {
+        private static final long SWEEP_NANOS = 10000000000L;
+        private static final int SLICE = 16 * 1024;
+
+        private final long requestNanos;
+        private final long burstNanos;
+        private final int maxInFlight;
+        private final double byteNanos;
+        private final ConcurrentHashMap<InetAddress, Client> clients = new ConcurrentHashMap<InetAddress, Client>();
+        private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+        ClientLimiter(double perSecond, int burst, int maxInFlight, long bytesPerSecond) {
+            requestNanos = perSecond > 0 ? (long) (1e9 / perSecond) : 0;
+            burstNanos = requestNanos * Math.max(0, burst - 1);
+            this.maxInFlight = maxInFlight;
+            byteNanos = bytesPerSecond > 0 ? 1e9 / bytesPerSecond : 0;
+        }
+
+        Client client(InetAddress address) {
+            long now = System.nanoTime();
+            long last = lastSweep.get();
+            if (now - last > SWEEP_NANOS && lastSweep.compareAndSet(last, now))
+                sweep(now);
+            Client c = clients.get(address);
+            if (c == null) {
+                Client created = new Client();
+                c = clients.putIfAbsent(address, created);
+                if (c == null)
+                    c = created;
+            }
+            return c;
+        }
+
+        /**
+         * Forgets clients with nothing in progress whose buckets have been
+         * full for a while. A session still holding one keeps using it.
+         */
+        private void sweep(long now) {
+            for (Iterator<Client> it = clients.values().iterator(); it.hasNext(); ) {
+                Client c = it.next();
+                if (c.inFlight.get() == 0 && now - c.requests.get() > SWEEP_NANOS
+                        && now - c.bytes.get() > SWEEP_NANOS)
+                    it.remove();
+            }
+        }
+
+        class Client {
+            final AtomicLong requests = new AtomicLong(System.nanoTime() - SWEEP_NANOS);
+            final AtomicLong bytes = new AtomicLong(System.nanoTime() - SWEEP_NANOS);
+            final AtomicInteger inFlight = new AtomicInteger();
+
+            /**
+             * Takes a token for one request. Returns 0 if there was one,
+             * else how many nanoseconds until there is.
+             */
+            long admit() {
+                if (requestNanos == 0)
+                    return 0;
+                while (true) {
+                    long now = System.nanoTime();
+                    long tat = requests.get();
+                    long next = Math.max(tat, now) + requestNanos;
+                    long wait = next - now - burstNanos - requestNanos;
+                    if (wait > 0)
+                        return wait;
+                    if (requests.compareAndSet(tat, next))
+                        return 0;
+                }
+            }
+
+            boolean enter() {
+                if (maxInFlight <= 0)
+                    return true;
+                if (inFlight.incrementAndGet() <= maxInFlight)
+                    return true;
+                inFlight.decrementAndGet();
+                return false;
+            }
+
+            void leave() {
+                if (maxInFlight > 0)
+                    inFlight.decrementAndGet();
+            }
+
+            boolean isShaped() {
+                return byteNanos > 0;
+            }
+
+            /**
+             * Wraps a response stream so writes are paced to the client's
+             * bandwidth, shared by all of its connections.
+             */
+            OutputStream shape(OutputStream out) {
+                return new FilterOutputStream(out) {
+                    public void write(int b) throws IOException {
+                        pace(out, 1);
+                        out.write(b);
+                    }
+
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        while (len > 0) {
+                            int n = Math.min(len, SLICE);
+                            pace(out, n);
+                            out.write(b, off, n);
+                            off += n;
+                            len -= n;
+                        }
+                    }
+                };
+            }
+
+            /**
+             * Charges n bytes to the bucket and sleeps off whatever goes
+             * beyond a second's burst.
+             */
+            private void pace(OutputStream out, int n) throws IOException {
+                long cost = (long) (n * byteNanos);
+                long now, tat, next;
+                do {
+                    now = System.nanoTime();
+                    tat = bytes.get();
+                    next = Math.max(tat, now - 1000000000L) + cost;
+                } while (!bytes.compareAndSet(tat, next));
+                long wait = next - now;
+                if (wait <= 0)
+                    return;
+                // What's already buffered should leave before we sleep
+                out.flush();
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Limits retries and hedges to a share of upstream requests. Every
+     * request deposits that share of a token and every retry spends a whole
+     * one, with a small allowance each second so a quiet proxy can still
+     * retry; the balance is capped so a long quiet spell can't save up a
+     * retry storm for the next outage.
+     */
+    static class RetryBudget {
+        private static final long TOKEN = 1000;
+        private static final long CAP = 100 * TOKEN;
+
+        private final long perRequest;
+        private final int perSecond;
+        private final AtomicLong balance = new AtomicLong();
+        private final AtomicLong second = new AtomicLong();
+        private final AtomicInteger allowance = new AtomicInteger();
+
+        RetryBudget(double ratio, int perSecond) {
+            this.perRequest = (long) (ratio * TOKEN);
+            this.perSecond = perSecond;
+        }
+
+        void deposit() {
+            long b;
+            do {
+                b = balance.get();
+                if (b >= CAP)
+                    return;
+            } while (!balance.compareAndSet(b, Math.min(CAP, b + perRequest)));
+        }
+
+        boolean withdraw() {
+            long now = System.currentTimeMillis() / 1000;
+            long last = second.get();
+            if (last != now && second.compareAndSet(last, now))
+                allowance.set(perSecond);
+            if (allowance.get() > 0 && allowance.decrementAndGet() >= 0)
+                return true;
+            long b;
+            do {
+                b = balance.get();
+                if (b < TOKEN)
+                    return false;
+            } while (!balance.compareAndSet(b, b - TOKEN));
+            return true;
+        }
+    }
+
+    /**
+     * Races a second copy of a slow idempotent request against the first.
+     * The copy goes out once the first has waited longer than the chosen
+     * percentile of recent first-byte latencies; the first reply to arrive
+     * is used and the other is closed as soon as it turns up.
+     */
+    private class Hedger {
+        private static final long MIN_SAMPLES = 100;
+
+        final ExecutorService executor;
+        private final double percentile;
+        private volatile long delayMicros = -1;
+        private volatile long computed;
+
+        Hedger(double percentile) {
+            this.percentile = percentile;
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "NanoProxy-hedge");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        /**
+         * The hedging delay in microseconds, recomputed at most once a
+         * second, or -1 until enough latencies have been seen.
+         */
+        private long delay() {
+            long now = System.currentTimeMillis();
+            if (now - computed >= 1000) {
+                computed = now;
+                delayMicros = metrics.firstByte.percentile(percentile, MIN_SAMPLES);
+            }
+            return delayMicros;
+        }
+
+        /**
+         * Returns the first reply, or null without sending anything while
+         * there is no delay to hedge at yet.
+         */
+        UpstreamReply fetch(final String method, final URL url, final Headers header, final long deadline)
+                throws IOException {
+            long delay = delay();
+            if (delay < 0)
+                return null;
+            final AtomicBoolean claimed = new AtomicBoolean();
+            CompletionService<UpstreamReply> attempts = new ExecutorCompletionService<UpstreamReply>(executor);
+            Callable<UpstreamReply> attempt = new Callable<UpstreamReply>() {
+                public UpstreamReply call() throws IOException {
+                    UpstreamReply reply = exchange(method, url, header, null, 0, deadline);
+                    if (claimed.compareAndSet(false, true))
+                        return reply;
+                    discard(reply);
+                    return null;
+                }
+            };
+            Future<UpstreamReply> first = attempts.submit(attempt);
+            int pending = 1;
+            IOException failure = null;
+            try {
+                Future<UpstreamReply> done = attempts.poll(delay, TimeUnit.MICROSECONDS);
+                if (done == null && retryBudget.withdraw()) {
+                    metrics.upstreamHedges.add(1);
+                    attempts.submit(attempt);
+                    pending++;
+                }
+                while (pending > 0) {
+                    if (done == null) {
+                        long left = deadline == 0 ? Long.MAX_VALUE : deadline - System.currentTimeMillis();
+                        done = left <= 0 ? null : attempts.poll(left, TimeUnit.MILLISECONDS);
+                        if (done == null)
+                            break;
+                    }
+                    pending--;
+                    try {
+                        UpstreamReply reply = done.get();
+                        if (reply != null) {
+                            if (done != first)
+                                metrics.upstreamHedgeWins.add(1);
+                            return reply;
+                        }
+                    } catch (ExecutionException ee) {
+                        failure = ee.getCause() instanceof IOException ? (IOException) ee.getCause()
+                                : new IOException(ee.getCause());
+                    }
+                    done = null;
+                }
+                // Past the deadline: claim the race so late replies get
+                // closed, unless one claimed it in the meantime
+                if (pending > 0 && !claimed.compareAndSet(false, true))
+                    while (true) {
+                        try {
+                            UpstreamReply reply = attempts.take().get();
+                            if (reply != null)
+                                return reply;
+                        } catch (ExecutionException ee) {
+                        }
+                    }
+            } catch (InterruptedException ie) {
+                claimed.set(true);
+                throw new InterruptedIOException();
+            }
+            if (failure != null && pending == 0)
+                throw failure;
+            metrics.upstreamTimeouts.add(1);
+            throw new GatewayTimeoutException(url.getHost() + " did not answer in time.");
+        }
+
+        private void discard(UpstreamReply reply) {
+            if (reply.body == null)
+                return;
+            try {
+                reply.body.close();
+            } catch (IOException ioe) {
+            }
+        }
+    }
+
+    /**
+     * Probes every backend node on a fixed interval from one daemon thread,
+     * and runs each pool's outlier sweep on the same beat.
+     */
+    private class HealthChecker implements Runnable {
+        private static final int UNHEALTHY_AFTER = 2;
+
+        private final String path;
+        private final long intervalMillis;
+        private final Thread thread;
+        private volatile boolean open = true;
+
+        HealthChecker(String path, long intervalMillis) {
+            this.path = path;
+            this.intervalMillis = intervalMillis;
+            thread = new Thread(this, "NanoProxy-health");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void close() {
+            open = false;
+            thread.interrupt();
+        }
+
+        public void run() {
+            while (open) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                for (BackendPool pool : backendPools.values()) {
+                    if (path != null)
+                        for (int i = 0; i < pool.nodes.length && open; i++) {
+                            Backend b = pool.nodes[i];
+                            if (probe(pool.name, b)) {
+                                b.failedProbes = 0;
+                                b.healthy = true;
+                            } else if (++b.failedProbes >= UNHEALTHY_AFTER) {
+                                b.healthy = false;
+                            }
+                        }
+                    pool.sweep(System.currentTimeMillis());
+                }
+            }
+        }
+
+        /**
+         * True if the node answers a GET for the health path with a 2xx or
+         * 3xx within the probe interval.
+         */
+        private boolean probe(String host, Backend b) {
+            int timeout = (int) Math.min(intervalMillis, 2000);
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(b.host, b.port), timeout);
+                s.setSoTimeout(timeout);
+                OutputStream out = s.getOutputStream();
+                out.write(("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n")
+                        .getBytes("ISO-8859-1"));
+                out.flush();
+                String line = readLine(new BufferedInputStream(s.getInputStream()));
+                return line != null && line.startsWith("HTTP/") && line.length() >= 12
+                        && (line.charAt(9) == '2' || line.charAt(9) == '3');
+            } catch (IOException ioe) {
+                return false;
+            } finally {
+                try {
+                    s.close();
+                } catch (IOException ioe) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Options set on every client and upstream socket. Buffer sizes are
+     * set before connecting, while a window above 64KB can still be
+     * negotiated.
+     */
+    static class SocketTuning {
+        private final boolean noDelay;
+        private final boolean keepAlive;
+        private final int sendBufferBytes;
+        private final int receiveBufferBytes;
+
+        SocketTuning(Config config) {
+            noDelay = config.tcpNoDelay;
+            keepAlive = config.tcpKeepAlive;
+            sendBufferBytes = config.socketSendBufferBytes;
+            receiveBufferBytes = config.socketReceiveBufferBytes;
+        }
+
+        void apply(Socket s) throws SocketException {
+            s.setTcpNoDelay(noDelay);
+            if (keepAlive)
+                s.setKeepAlive(true);
+            if (sendBufferBytes > 0)
+                s.setSendBufferSize(sendBufferBytes);
+            if (receiveBufferBytes > 0)
+                s.setReceiveBufferSize(receiveBufferBytes);
+        }
+    }
+
+    /**
+     * Keep-alive upstream connections, keyed by host:port. At most
+     * maxPerHost connections per host are lent out at once; idle ones are
+     * probed before reuse and swept once they exceed idleMillis.
+     */
+    static class UpstreamPool {
+        private final int maxPerHost;
+        private final long acquireTimeoutMillis;
+        private final long idleMillis;
+        private final int connectTimeoutMillis;
+        private final SocketTuning tuning;
+        private final ConcurrentHashMap<String, HostPool> hosts = new ConcurrentHashMap<String, HostPool>();
+        private final Timer sweeper = new Timer("NanoProxy-upstream-sweeper", true);
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+
+        UpstreamPool(int maxPerHost, long acquireTimeoutMillis, long idleMillis, int connectTimeoutMillis,
+                     SocketTuning tuning) {
+            this.maxPerHost = Math.max(1, maxPerHost);
+            this.acquireTimeoutMillis = acquireTimeoutMillis;
+            this.idleMillis = idleMillis;
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.tuning = tuning;
+            long period = Math.max(1000, idleMillis / 2);
+            sweeper.schedule(new TimerTask() {
+                public void run() {
+                    for (HostPool pool : hosts.values())
+                        pool.evict(false);
+                }
+            }, period, period);
+        }
+
+        /**
+         * Lends out a connection to host:port, waiting at most
+         * acquireTimeoutMillis for one to come free, or until the request's
+         * deadline if that is sooner (0 for none).
+         */
+        UpstreamConnection acquire(String host, int port, long deadline) throws IOException {
+            String key = host + ":" + port;
+            HostPool pool = hosts.get(key);
+            if (pool == null) {
+                HostPool created = new HostPool(host, port);
+                pool = hosts.putIfAbsent(key, created);
+                if (pool == null)
+                    pool = created;
+            }
+            return pool.acquire(deadline);
+        }
+
+        void close() {
+            sweeper.cancel();
+            for (HostPool pool : hosts.values())
+                pool.evict(true);
+        }
+
+        class HostPool {
+            final String host;
+            final int port;
+            private final Semaphore permits = new Semaphore(maxPerHost);
+            private final LinkedList<UpstreamConnection> idle = new LinkedList<UpstreamConnection>();
+
+            HostPool(String host, int port) {
+                this.host = host;
+                this.port = port;
+            }
+
+            int connectTimeoutMillis() {
+                return connectTimeoutMillis;
+            }
+
+            SocketTuning tuning() {
+                return tuning;
+            }
+
+            UpstreamConnection acquire(long deadline) throws IOException {
+                long wait = acquireTimeoutMillis;
+                boolean due = deadline != 0 && deadline - System.currentTimeMillis() <= wait;
+                if (due)
+                    wait = Math.max(0, deadline - System.currentTimeMillis());
+                try {
+                    if (!permits.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                        if (due)
+                            throw new GatewayTimeoutException(host + ":" + port + " did not answer in time.");
+                        throw new IOException("Too many connections to " + host + ":" + port);
+                    }
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException();
+                }
+                while (true) {
+                    UpstreamConnection c;
+                    synchronized (idle) {
+                        c = idle.pollFirst();
+                    }
+                    if (c == null)
+                        break;
+                    if (c.isHealthy(idleMillis)) {
+                        c.reused = true;
+                        hits.incrementAndGet();
+                        return c;
+                    }
+                    c.close();
+                }
+                misses.incrementAndGet();
+                try {
+                    return new UpstreamConnection(this);
+                } catch (IOException ioe) {
+                    permits.release();
+                    throw ioe;
+                }
+            }
 
-        public String status;
-        public String mimeType;
-        public InputStream data;
-        public Properties header = new Properties();
+            void release(UpstreamConnection c, boolean reusable) {
+                if (reusable) {
+                    c.lastUsed = System.currentTimeMillis();
+                    synchronized (idle) {
+                        idle.addFirst(c);
+                    }
+                } else {
+                    c.close();
+                }
+                permits.release();
+            }
 
-        public Response() {
+            /**
+             * Closes idle connections past idleMillis, or all of them.
+             */
+            void evict(boolean all) {
+                long oldest = System.currentTimeMillis() - idleMillis;
+                synchronized (idle) {
+                    Iterator<UpstreamConnection> it = idle.descendingIterator();
+                    while (it.hasNext()) {
+                        UpstreamConnection c = it.next();
+                        if (!all && c.lastUsed >= oldest)
+                            break;
+                        it.remove();
+                        c.close();
+                    }
+                }
+            }
         }
     }
 
-    public static final String HTTP_BADREQUEST = "400 Bad Request";
-    public static final String HTTP_INTERNALERROR = "500 Internal Server Error";
+    /**
+     * One HTTP/1.1 connection to an upstream host.
+     */
+    static class UpstreamConnection {
+        private final UpstreamPool.HostPool owner;
+        private final SocketChannel channel;
+        private final InputStream in;
+        private final OutputStream out;
+        private final ByteBuffer probe = ByteBuffer.allocate(1);
+        private final byte[] buffer = new byte[8192];
+        private boolean released;
+        boolean reused;
+        long lastUsed;
+        final long connectNanos;
+        private Backend node;
+        private int readTimeoutMillis;
+        private long deadline;
 
-    public static final String MIME_PLAINTEXT = "text/plain";
-    public static final String MIME_HTML = "text/html";
+        UpstreamConnection(UpstreamPool.HostPool owner) throws IOException {
+            this.owner = owner;
+            channel = SocketChannel.open();
+            long started = System.nanoTime();
+            try {
+                owner.tuning().apply(channel.socket());
+                channel.socket().connect(new InetSocketAddress(owner.host, owner.port), owner.connectTimeoutMillis());
+                in = new BufferedInputStream(channel.socket().getInputStream(), 8192);
+                out = new BufferedOutputStream(channel.socket().getOutputStream(), 8192);
+            } catch (IOException ioe) {
+                closeQuietly(channel);
+                throw ioe;
+            }
+            connectNanos = System.nanoTime() - started;
+        }
 
-    public NanoProxy(int port) throws IOException {
-        runThread = true;
-        serverSocket = new ServerSocket(port);
+        /**
+         * Writes the request line, Host and the client's end-to-end headers,
+         * then the body, framed by its length or chunked.
+         */
+        void writeRequest(String method, URL url, HeaderSource header, InputStream body, long length)
+                throws IOException {
+            released = false;
+            StringBuilder sb = new StringBuilder(128);
+            sb.append(method).append(' ').append(url.getFile().length() == 0 ? "/" : url.getFile())
+                    .append(" HTTP/1.1\r\nHost: ").append(url.getHost());
+            if (url.getPort() >= 0 && url.getPort() != 80)
+                sb.append(':').append(url.getPort());
+            sb.append("\r\n");
+            out.write(sb.toString().getBytes("ISO-8859-1"));
+            header.forward(out);
+            sb.setLength(0);
+            if (length >= 0 || body == null && (method.equalsIgnoreCase("POST") || method.equalsIgnoreCase("PUT")
+                    || method.equalsIgnoreCase("PATCH")))
+                sb.append("Content-Length: ").append(Math.max(0, length)).append("\r\n");
+            else if (body != null)
+                sb.append("Transfer-Encoding: chunked\r\n");
+            sb.append("\r\n");
+            out.write(sb.toString().getBytes("ISO-8859-1"));
+            if (body != null) {
+                if (length >= 0) {
+                    transfer(body, out, null, buffer);
+                } else {
+                    ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+                    transfer(body, chunked, null, buffer);
+                    chunked.finish();
+                }
+            }
+            out.flush();
+        }
 
-        Thread t = new Thread(new Runnable() {
-            public void run() {
+        UpstreamReply readReply(String method) throws IOException {
+            UpstreamReply reply = new UpstreamReply();
+            String line;
+            do {
+                line = readLine(in);
+                if (line == null)
+                    throw new EOFException("Upstream closed the connection");
+                if (!line.startsWith("HTTP/") || line.length() < 12)
+                    throw new IOException("Bad upstream status line: " + line);
                 try {
-                    while (runThread) {
-                        new HTTPSession(serverSocket.accept());
-                    }
-                } catch (IOException ioe) {
+                    reply.code = Integer.parseInt(line.substring(9, 12));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad upstream status line: " + line);
+                }
+                reply.status = line.substring(9).trim();
+                reply.keepAlive = line.startsWith("HTTP/1.1");
+                reply.header = new Headers();
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int p = line.indexOf(':');
+                    if (p > 0)
+                        reply.header.add(line.substring(0, p).trim(), line.substring(p + 1).trim());
                 }
+                // 1xx interim responses carry no body; skip to the real one
+            } while (reply.code >= 100 && reply.code < 200);
+
+            String connection = reply.header.get("Connection");
+            if (connection != null)
+                reply.keepAlive = connection.equalsIgnoreCase("keep-alive");
+
+            InputStream body;
+            String te = reply.header.get("Transfer-Encoding");
+            String cl = reply.header.get("Content-Length");
+            if (method.equalsIgnoreCase("HEAD") || reply.code == 204 || reply.code == 304) {
+                body = new LengthInputStream(in, 0);
+                reply.bodiless = true;
+            } else if (te != null && te.toLowerCase().contains("chunked")) {
+                body = new ChunkedInputStream(in);
+            } else if (cl != null) {
+                long length = contentLength(cl);
+                if (length < 0)
+                    throw new IOException("Bad upstream Content-Length: " + cl);
+                body = new LengthInputStream(in, length);
+            } else {
+                body = in;
+                reply.keepAlive = false;
             }
-        });
-        t.setDaemon(true);
-        t.start();
-    }
+            reply.body = new UpstreamBody(body, reply.keepAlive);
+            return reply;
+        }
 
-    public void stop() throws IOException {
-        this.runThread = false;
-        serverSocket.close();
-    }
+        /**
+         * A pooled connection is only handed out again if the peer has not
+         * closed it and nothing unexpected is waiting to be read.
+         */
+        boolean isHealthy(long idleMillis) {
+            if (!channel.isOpen() || System.currentTimeMillis() - lastUsed > idleMillis)
+                return false;
+            try {
+                if (in.available() > 0)
+                    return false;
+                probe.clear();
+                channel.configureBlocking(false);
+                int read = channel.read(probe);
+                channel.configureBlocking(true);
+                return read == 0;
+            } catch (IOException ioe) {
+                return false;
+            }
+        }
 
-    public static void main(String[] args) {
-        System.out.println("NanoProxy 0.11 (C) 2013, Crane Zhang\n" +
-                "(Command line options: [port] [--licence])\n");
+        /**
+         * Bounds the next exchange: each read may wait up to readTimeoutMillis
+         * and all of them end by deadline, unless that is 0.
+         */
+        void limit(int readTimeoutMillis, long deadline) throws IOException {
+            this.readTimeoutMillis = readTimeoutMillis;
+            this.deadline = deadline;
+            applyTimeout();
+        }
 
-        // Show licence if requested
-        int lopt = -1;
-        for (int i = 0; i < args.length; ++i)
-            if (args[i].toLowerCase().endsWith("licence")) {
-                lopt = i;
-                System.out.println(LICENCE + "\n");
+        private void applyTimeout() throws IOException {
+            int timeout = readTimeoutMillis;
+            if (deadline != 0) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    throw new SocketTimeoutException("Upstream exchange past its deadline");
+                timeout = timeout <= 0 ? (int) Math.min(left, Integer.MAX_VALUE) : (int) Math.min(left, timeout);
             }
+            channel.socket().setSoTimeout(timeout);
+        }
 
-        // Change port if requested
-        int port = 1024;
-        if (args.length > 0 && lopt != 0)
-            port = Integer.parseInt(args[0]);
+        /**
+         * Counts the exchange as outstanding on a backend node until the
+         * connection is released.
+         */
+        void serve(Backend node) {
+            this.node = node;
+            node.outstanding.incrementAndGet();
+        }
 
-        if (args.length > 1 &&
-                args[1].toLowerCase().endsWith("licence"))
-            System.out.println(LICENCE + "\n");
+        void release(boolean reusable) {
+            if (released)
+                return;
+            released = true;
+            if (node != null) {
+                node.outstanding.decrementAndGet();
+                node = null;
+            }
+            owner.release(this, reusable);
+        }
 
-        NanoProxy nh = null;
-        try {
-            nh = new NanoProxy(port);
-        } catch (IOException ioe) {
-            System.err.println("Couldn't start server:\n" + ioe);
-            System.exit(-1);
+        void close() {
+            closeQuietly(channel);
         }
 
-        System.out.println("Hit Enter to stop.\n");
+        /**
+         * Gives the connection back once the body has been read to the end;
+         * closing it early means the connection can't be reused.
+         */
+        private class UpstreamBody extends FilterInputStream {
+            private final boolean keepAlive;
+            // Once given back the connection may already serve another
+            // request, so this body must not release it a second time
+            private boolean finished;
 
-        try {
-            System.in.read();
-        } catch (Throwable t) {
-        };
+            UpstreamBody(InputStream body, boolean keepAlive) {
+                super(body);
+                this.keepAlive = keepAlive;
+            }
+
+            public int read() throws IOException {
+                if (finished)
+                    return -1;
+                if (deadline != 0)
+                    applyTimeout();
+                int b = super.read();
+                if (b < 0)
+                    finish(keepAlive);
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (finished)
+                    return -1;
+                if (deadline != 0)
+                    applyTimeout();
+                int read = super.read(b, off, len);
+                if (read < 0)
+                    finish(keepAlive);
+                return read;
+            }
+
+            public void close() {
+                finish(false);
+            }
+
+            private void finish(boolean reusable) {
+                if (finished)
+                    return;
+                finished = true;
+                release(reusable);
+            }
+        }
     }
 
     /**
-     * Handles one session, i.e. parses the HTTP request
-     * and returns the response.
+     * Reads exactly length bytes of the underlying stream, then reports EOF.
      */
-    private class HTTPSession implements Runnable {
-        private Socket mySocket;
+    static class LengthInputStream extends FilterInputStream {
+        private long remaining;
 
-        public HTTPSession(Socket s) {
-            mySocket = s;
-            Thread t = new Thread(this);
-            t.setDaemon(true);
-            t.start();
+        LengthInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
         }
 
-        public void run() {
-            try {
-                InputStream is = mySocket.getInputStream();
-                if (is == null) return;
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Body ended " + remaining + " bytes early");
+            remaining--;
+            return b;
+        }
 
-                BufferedReader in = new BufferedReader(new InputStreamReader(is));
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read < 0)
+                throw new EOFException("Body ended " + remaining + " bytes early");
+            remaining -= read;
+            return read;
+        }
 
-                // Read the request line
-                StringTokenizer st = new StringTokenizer(in.readLine());
-                if (!st.hasMoreTokens())
-                    sendError(HTTP_BADREQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
 
-                String method = st.nextToken();
+        public void close() {
+        }
+    }
 
-                if (!st.hasMoreTokens())
-                    sendError(HTTP_BADREQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+    /**
+     * Decodes a chunked transfer-coded body, skipping any trailers. Bad
+     * framing in a client's request body is a BadRequestException, so it
+     * is answered with a 400 rather than blamed on the upstream.
+     */
+    static class ChunkedInputStream extends FilterInputStream {
+        private final boolean request;
+        private long chunkRemaining;
+        private boolean eof;
 
-                String uri = st.nextToken();
+        ChunkedInputStream(InputStream in) {
+            this(in, false);
+        }
 
-                // Decode parameters from the URI
-                Properties parms = new Properties();
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParms(uri.substring(qmi + 1), parms);
-                    uri = decodePercent(uri.substring(0, qmi));
-                } else uri = decodePercent(uri);
+        ChunkedInputStream(InputStream in, boolean request) {
+            super(in);
+            this.request = request;
+        }
 
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
 
-                // If there's another token, it's protocol version,
-                // followed by HTTP headers. Ignore version but parse headers.
-                // NOTE: this now forces header names uppercase since they are
-                // case insensitive and vary by client.
-                Properties header = new Properties();
-                if (st.hasMoreTokens()) {
-                    String line = in.readLine();
-                    while (line.trim().length() > 0) {
-                        int p = line.indexOf(':');
-                        header.put(line.substring(0, p).trim().toLowerCase(), line.substring(p + 1).trim());
-                        line = in.readLine();
-                    }
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof)
+                return -1;
+            if (chunkRemaining == 0) {
+                String size = readLine(in);
+                if (size == null)
+                    throw new EOFException("Chunked body ended early");
+                int semi = size.indexOf(';');
+                try {
+                    chunkRemaining = Long.parseLong((semi >= 0 ? size.substring(0, semi) : size).trim(), 16);
+                } catch (NumberFormatException e) {
+                    chunkRemaining = -1;
                 }
-
-                // If the method is POST, there may be parameters
-                // in data section, too, read it:
-                Response r = new Response();
-                if (method.equalsIgnoreCase("POST")) {
-                    long size = 0x7FFFFFFFFFFFFFFFl;
-                    String contentLength = header.getProperty("content-length");
-                    if (contentLength != null) {
-                        try {
-                            size = Integer.parseInt(contentLength);
-                        } catch (NumberFormatException ex) {
-                        }
-                    }
-                    String postLine = "";
-                    char buf[] = new char[512];
-                    int read = in.read(buf);
-                    while (read >= 0 && size > 0 && !postLine.endsWith("\r\n")) {
-                        size -= read;
-                        postLine += String.valueOf(buf, 0, read);
-                        if (size > 0)
-                            read = in.read(buf);
-                    }
-                    postLine = postLine.trim();
-                    decodeParms(postLine, parms);
-                    r = serveWeb(uri, method, postLine);
+                if (chunkRemaining < 0) {
+                    if (request)
+                        throw new BadRequestException(HTTP_BADREQUEST, "BAD REQUEST: Bad chunk size.");
+                    throw new IOException("Bad chunk size: " + size);
                 }
-                if (method.equalsIgnoreCase("GET")) {
-                    r = serveWeb(uri, method);
+                if (chunkRemaining == 0) {
+                    String trailer;
+                    while ((trailer = readLine(in)) != null && trailer.length() > 0)
+                        ;
+                    eof = true;
+                    return -1;
                 }
+            }
+            int read = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (read < 0)
+                throw new EOFException("Chunked body ended early");
+            chunkRemaining -= read;
+            if (chunkRemaining == 0)
+                readLine(in);
+            return read;
+        }
 
-                if (r == null)
-                    sendError(HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: Server returned a null response.");
-                else
-                    sendResponse(r.status, r.mimeType, r.header, r.data);
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), chunkRemaining);
+        }
 
-                in.close();
-            } catch (IOException ioe) {
-                try {
-                    sendError(HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
-                } catch (Throwable t) {
-                }
-            } catch (InterruptedException ie) {
-                // Thrown by sendError, ignore and exit the thread.
-            }
+        public void close() {
+        }
+    }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Writes chunked transfer coding; finish() writes the last chunk
+     * without closing the underlying stream. The CRLF closing a chunk goes
+     * out with the size line of the next one, so a chunk costs two writes.
+     */
+    static class ChunkedOutputStream extends FilterOutputStream {
+        private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+        private static final byte[] END_LAST_CHUNK = {'\r', '\n', '0', '\r', '\n', '\r', '\n'};
+
+        private final byte[] sizeLine = new byte[2 + 8 + 2];
+        private boolean open;
+
+        ChunkedOutputStream(OutputStream out) {
+            this(out, false);
         }
 
         /**
-         * Decodes the percent encoding scheme. <br/>
-         * For example: "an+example%20string" -> "an example string"
+         * open: a chunk's data has already been written, all but its
+         * closing CRLF.
          */
-        private String decodePercent(String str) throws InterruptedException {
-            try {
-                StringBuffer sb = new StringBuffer();
-                for (int i = 0; i < str.length(); i++) {
-                    char c = str.charAt(i);
-                    switch (c) {
-                        case '+':
-                            sb.append(' ');
-                            break;
-                        case '%':
-                            sb.append((char) Integer.parseInt(str.substring(i + 1, i + 3), 16));
-                            i += 2;
-                            break;
-                        default:
-                            sb.append(c);
-                            break;
-                    }
-                }
-                return new String(sb.toString().getBytes());
-            } catch (Exception e) {
-                sendError(HTTP_BADREQUEST, "BAD REQUEST: Bad percent-encoding.");
-                return null;
+        ChunkedOutputStream(OutputStream out, boolean open) {
+            super(out);
+            this.open = open;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+            int n = 0;
+            if (open) {
+                sizeLine[n++] = '\r';
+                sizeLine[n++] = '\n';
+            }
+            n = ResponseHead.hex(len, sizeLine, n);
+            sizeLine[n++] = '\r';
+            sizeLine[n++] = '\n';
+            out.write(sizeLine, 0, n);
+            out.write(b, off, len);
+            open = true;
+        }
+
+        void finish() throws IOException {
+            out.write(open ? END_LAST_CHUNK : LAST_CHUNK);
+            open = false;
+        }
+
+        public void close() {
+        }
+    }
+
+    static final int BODY_LENGTH = 0;
+    static final int BODY_CHUNKED = 1;
+    static final int BODY_CLOSE = 2;
+
+    /**
+     * Writes the status line and headers of a response, and returns how
+     * the body that follows must be framed: BODY_LENGTH when its length
+     * is known, BODY_CHUNKED, or BODY_CLOSE when only closing the
+     * connection can end it.
+     */
+    static int writeHead(OutputStream out, String status, String mime, Headers header, InputStream data,
+                         boolean chunkedAllowed, boolean keepAlive) throws IOException {
+        ResponseHead head = ResponseHead.get();
+        int framing = writeHead(head, status, mime, header, data, false, chunkedAllowed, keepAlive);
+        head.writeTo(out);
+        return framing;
+    }
+
+    /**
+     * Like the above, but leaves the head in the thread's ResponseHead, so
+     * the start of the body can go out with it. A reply to HEAD has no data
+     * and keeps whatever framing headers it came with.
+     */
+    static int writeHead(ResponseHead head, String status, String mime, Headers header, InputStream data,
+                         boolean headRequest, boolean chunkedAllowed, boolean keepAlive) throws IOException {
+        head.status(status);
+        if (mime != null)
+            head.header(ResponseHead.CONTENT_TYPE, mime);
+        if (header == null || header.get("Date") == null)
+            head.line(ResponseHead.dateLine(System.currentTimeMillis()));
+        if (header != null)
+            for (int i = 0; i < header.size(); i++)
+                head.header(header.name(i), header.value(i));
+
+        // Frame the body so the connection can carry another response
+        int framing = BODY_LENGTH;
+        if (header == null || header.get("Content-Length") == null) {
+            if (data == null) {
+                // An empty body is framed by a zero length; a status that
+                // never has a body carries no length, and neither does a
+                // reply to HEAD that came without one
+                if (!headRequest && !status.startsWith("1") && !status.startsWith("204")
+                        && !status.startsWith("304"))
+                    head.line(ResponseHead.NO_CONTENT_LENGTH);
             }
+            else if (data instanceof ByteArrayInputStream)
+                head.header(ResponseHead.CONTENT_LENGTH, data.available());
+            else if (chunkedAllowed && keepAlive) {
+                head.line(ResponseHead.CHUNKED);
+                framing = BODY_CHUNKED;
+            } else
+                framing = BODY_CLOSE;
         }
+        head.line(framing != BODY_CLOSE && keepAlive ? ResponseHead.KEEP_ALIVE : ResponseHead.CLOSE);
+        head.line(ResponseHead.CRLF);
+        return framing;
+    }
+
+    /**
+     * A response head serialized straight to bytes. Status lines and the
+     * header lines the proxy writes itself are encoded once, the Date line
+     * once a second, and relayed headers are copied char by char without
+     * intermediate Strings. Reused by every response on its thread.
+     */
+    static class ResponseHead {
+        static final byte[] CRLF = {'\r', '\n'};
+        static final byte[] CONTENT_TYPE = ascii("Content-Type");
+        static final byte[] CONTENT_LENGTH = ascii("Content-Length");
+        static final byte[] NO_CONTENT_LENGTH = ascii("Content-Length: 0\r\n");
+        static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+        static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+        static final byte[] CLOSE = ascii("Connection: close\r\n");
+        private static final byte[] HEX = ascii("0123456789abcdef");
+        // Upstreams choose their own reason phrases; don't keep every one
+        private static final int MAX_STATUS_LINES = 256;
+
+        private static final ConcurrentHashMap<String, byte[]> statusLines = new ConcurrentHashMap<String, byte[]>();
+        private static volatile DateLine date = new DateLine(-1, null);
+        private static final ThreadLocal<ResponseHead> heads = new ThreadLocal<ResponseHead>() {
+            protected ResponseHead initialValue() {
+                return new ResponseHead();
+            }
+        };
+
+        private byte[] buf = new byte[1024];
+        private int size;
 
         /**
-         * Decodes parameters in percent-encoded URI-format
-         * ( e.g. "name=Jack%20Daniels&pass=Single%20Malt" ) and
-         * adds them to given Properties.
+         * The calling thread's head, emptied.
          */
-        private void decodeParms(String parms, Properties p)
-                throws InterruptedException {
-            if (parms == null)
-                return;
+        static ResponseHead get() {
+            ResponseHead head = heads.get();
+            head.size = 0;
+            return head;
+        }
 
-            StringTokenizer st = new StringTokenizer(parms, "&");
-            while (st.hasMoreTokens()) {
-                String e = st.nextToken();
-                int sep = e.indexOf('=');
-                if (sep >= 0)
-                    p.put(decodePercent(e.substring(0, sep)).trim(),
-                            decodePercent(e.substring(sep + 1)));
+        static byte[] ascii(String s) {
+            byte[] b = new byte[s.length()];
+            for (int i = 0; i < b.length; i++) {
+                char c = s.charAt(i);
+                b[i] = (byte) (c < 256 ? c : '?');
             }
+            return b;
         }
 
         /**
-         * Returns an error message as a HTTP response and
-         * throws InterruptedException to stop furhter request processing.
+         * The Date header line for the current second.
          */
-        private void sendError(String status, String msg) throws InterruptedException {
-            sendResponse(status, MIME_PLAINTEXT, null, new ByteArrayInputStream(msg.getBytes()));
-            throw new InterruptedException();
+        static byte[] dateLine(long now) {
+            DateLine d = date;
+            long second = now / 1000;
+            if (d.second != second) {
+                d = new DateLine(second, ascii("Date: " + formatDate(now) + "\r\n"));
+                date = d;
+            }
+            return d.line;
+        }
+
+        private static class DateLine {
+            final long second;
+            final byte[] line;
+
+            DateLine(long second, byte[] line) {
+                this.second = second;
+                this.line = line;
+            }
         }
 
         /**
-         * Sends given response to the socket.
+         * Writes n in hex at off, returning the offset after it.
          */
-        private void sendResponse(String status, String mime, Properties header, InputStream data) {
-            try {
-                if (status == null)
-                    throw new Error("sendResponse(): Status can't be null.");
+        static int hex(int n, byte[] b, int off) {
+            int digits = Math.max(1, (32 - Integer.numberOfLeadingZeros(n) + 3) / 4);
+            for (int i = digits - 1; i >= 0; i--)
+                b[off++] = HEX[(n >>> (i * 4)) & 0xf];
+            return off;
+        }
 
-                OutputStream out = mySocket.getOutputStream();
-                PrintWriter pw = new PrintWriter(out);
-                pw.print("HTTP/1.0 " + status + " \r\n");
+        int size() {
+            return size;
+        }
 
-                if (mime != null)
-                    pw.print("Content-Type: " + mime + "\r\n");
+        void status(String status) {
+            byte[] line = statusLines.get(status);
+            if (line == null) {
+                line = ascii("HTTP/1.1 " + status + " \r\n");
+                if (statusLines.size() < MAX_STATUS_LINES)
+                    statusLines.put(status, line);
+            }
+            line(line);
+        }
 
-                if (header == null || header.getProperty("Date") == null)
-                    pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
+        void line(byte[] line) {
+            append(line, 0, line.length);
+        }
 
-                if (header != null) {
-                    Enumeration e = header.keys();
-                    while (e.hasMoreElements()) {
-                        String key = (String) e.nextElement();
-                        String value = header.getProperty(key);
-                        pw.print(key + ": " + value + "\r\n");
-                    }
-                }
+        void header(byte[] name, String value) {
+            line(name);
+            text(": ");
+            text(value);
+            line(CRLF);
+        }
 
-                pw.print("\r\n");
-                pw.flush();
+        void header(String name, String value) {
+            text(name);
+            text(": ");
+            text(value);
+            line(CRLF);
+        }
 
-                if (data != null) {
-                    byte[] buff = new byte[2048];
-                    while (true) {
-                        int read = data.read(buff, 0, 2048);
-                        if (read <= 0)
-                            break;
-                        out.write(buff, 0, read);
-                    }
-                }
-                out.flush();
-                out.close();
-                if (data != null)
-                    data.close();
-            } catch (IOException ioe) {
-                // Couldn't write? No can do.
-                try {
-                    mySocket.close();
-                } catch (Throwable t) {
-                }
+        void header(byte[] name, long value) {
+            line(name);
+            text(": ");
+            text(Long.toString(value));
+            line(CRLF);
+        }
+
+        private void text(String s) {
+            int n = s.length();
+            ensure(n);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                buf[size++] = (byte) (c < 256 ? c : '?');
             }
         }
-    }
 
-    private Response serveWeb(String uri, String method, String postLine) throws IOException {
-        URL url = new URL(uri);
-        HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
-        httpURLConnection.setRequestMethod(method);
-        httpURLConnection.setDoOutput(true);
-        DataOutputStream wrForProxy = new DataOutputStream(httpURLConnection.getOutputStream());
-        wrForProxy.writeBytes(postLine);
+        /**
+         * Appends the first body bytes as they are.
+         */
+        void append(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, size, len);
+            size += len;
+        }
+
+        /**
+         * Appends the first body bytes as a chunk, all but its closing
+         * CRLF, which ChunkedOutputStream writes.
+         */
+        void chunk(byte[] b, int off, int len) {
+            ensure(12);
+            size = hex(len, buf, size);
+            buf[size++] = '\r';
+            buf[size++] = '\n';
+            append(b, off, len);
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, size);
+        }
 
-        String status = httpURLConnection.getResponseMessage();
-        String mimeType = MIME_HTML;
-        InputStream inputStream = httpURLConnection.getInputStream();
-        return new Response(status, mimeType, inputStream);
+        private void ensure(int more) {
+            if (size + more > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + more));
+        }
     }
 
-    public Response serveWeb(String uri, String method) throws IOException {
-        URL url = new URL(uri);
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-        urlConnection.setRequestMethod(method);
-        String status = urlConnection.getResponseMessage();
-        InputStream inputStream = urlConnection.getInputStream();
+    /**
+     * Copies in to out through the caller's buffer without holding more
+     * than one buffer of the body in memory. File sources are handed to
+     * FileChannel.transferTo when the target is a channel, so the kernel
+     * moves the bytes without copying them through the heap.
+     */
+    static long transfer(InputStream in, OutputStream out, WritableByteChannel target, byte[] buf)
+            throws IOException {
+        if (target != null && in instanceof FileRegionInputStream) {
+            out.flush();
+            return ((FileRegionInputStream) in).transferTo(target);
+        }
+        if (target != null && in instanceof FileInputStream) {
+            FileChannel file = ((FileInputStream) in).getChannel();
+            long start = file.position();
+            long size = file.size();
+            long position = start;
+            out.flush();
+            while (position < size)
+                position += file.transferTo(position, size - position, target);
+            file.position(position);
+            return position - start;
+        }
+        long total = 0;
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            out.write(buf, 0, read);
+            total += read;
+        }
+        return total;
+    }
 
-        String mimeType = MIME_HTML;
-        return new Response(status, mimeType, inputStream);
+    /**
+     * Reads a CRLF (or bare LF) terminated ISO-8859-1 line, without the
+     * terminator. Returns null at end of stream.
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r')
+                    sb.setLength(len - 1);
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
     }
 
     private static Hashtable theMimeTypes = new Hashtable();
@@ -380,13 +6261,34 @@ public class NanoProxy {
     }
 
     /**
-     * GMT date formatter
+     * GMT date formatter, one per thread since SimpleDateFormat keeps its
+     * working state in the instance.
      */
-    private static java.text.SimpleDateFormat gmtFrmt;
+    private static final ThreadLocal<java.text.SimpleDateFormat> gmtFrmt =
+            new ThreadLocal<java.text.SimpleDateFormat>() {
+        protected java.text.SimpleDateFormat initialValue() {
+            java.text.SimpleDateFormat f =
+                    new java.text.SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            f.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return f;
+        }
+    };
 
-    static {
-        gmtFrmt = new java.text.SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-        gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+    static String formatDate(long millis) {
+        return gmtFrmt.get().format(new Date(millis));
+    }
+
+    /**
+     * Parses an HTTP date, returning -1 if it can't be read.
+     */
+    static long parseDate(String value) {
+        if (value == null)
+            return -1;
+        try {
+            return gmtFrmt.get().parse(value.trim()).getTime();
+        } catch (java.text.ParseException e) {
+            return -1;
+        }
     }
 
     /**
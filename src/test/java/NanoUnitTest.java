@@ -3,18 +3,37 @@ import com.github.dreamhead.moco.Runnable;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URL;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import static com.github.dreamhead.moco.Moco.*;
 import static com.github.dreamhead.moco.Runner.running;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
 
 public class NanoUnitTest {
     private Proxy proxy;
@@ -26,6 +45,118 @@ public class NanoUnitTest {
         url = new URL("http://localhost:12306");
     }
 
+    /**
+     * Answers an upstream request: n counts requests across connections,
+     * body is the request body as it arrived, unframed.
+     */
+    private interface Replies {
+        String reply(int n, String head, String body) throws Exception;
+    }
+
+    /**
+     * Runs a raw keep-alive upstream on port that reads each request, body
+     * included, and writes back whatever replies gives for it. It closes the
+     * connection after a request that asks it to.
+     */
+    private static ServerSocket upstream(int port, final Replies replies) throws IOException {
+        final ServerSocket server = new ServerSocket(port);
+        final AtomicInteger count = new AtomicInteger();
+        Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket s = server.accept();
+                        Thread t = new Thread() {
+                            public void run() {
+                                try {
+                                    InputStream in = new BufferedInputStream(s.getInputStream());
+                                    String head;
+                                    while ((head = readHead(in)) != null) {
+                                        String body = readBody(in, head);
+                                        String reply = replies.reply(count.getAndIncrement(), head, body);
+                                        s.getOutputStream().write(reply.getBytes("ISO-8859-1"));
+                                        s.getOutputStream().flush();
+                                        if (head.toLowerCase().contains("\r\nconnection: close\r\n"))
+                                            break;
+                                    }
+                                    s.close();
+                                } catch (Exception e) {
+                                }
+                            }
+                        };
+                        t.setDaemon(true);
+                        t.start();
+                    }
+                } catch (Exception e) {
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0)
+            head.append(line).append("\r\n");
+        return line == null ? null : head.toString();
+    }
+
+    private static String readBody(InputStream in, String head) throws IOException {
+        String lower = head.toLowerCase();
+        StringBuilder body = new StringBuilder();
+        if (lower.contains("transfer-encoding: chunked")) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                for (int i = 0; i < size; i++)
+                    body.append((char) in.read());
+                readLine(in);
+            }
+            readLine(in);
+        } else if (lower.contains("content-length:")) {
+            int p = lower.indexOf("content-length:") + 15;
+            int length = Integer.parseInt(lower.substring(p, lower.indexOf('\r', p)).trim());
+            for (int i = 0; i < length; i++)
+                body.append((char) in.read());
+        }
+        return body.toString();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n')
+            if (c != '\r')
+                line.append((char) c);
+        return c < 0 && line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * Writes raw bytes to the proxy and returns everything it sends back
+     * until it closes the connection.
+     */
+    private static String send(String request) throws IOException {
+        Socket client = new Socket("127.0.0.1", 1024);
+        client.setSoTimeout(10000);
+        client.getOutputStream().write(request.getBytes("ISO-8859-1"));
+        return receive(client);
+    }
+
+    /**
+     * Reads what the proxy sends on client until it closes, then closes it.
+     */
+    private static String receive(Socket client) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = client.getInputStream().read(buf)) > 0)
+            response.write(buf, 0, read);
+        client.close();
+        return response.toString("ISO-8859-1");
+    }
+
     @Test
     public void should_response_as_expected() throws Exception {
         HttpServer server = httpserver(12306);
@@ -63,6 +194,75 @@ public class NanoUnitTest {
         });
     }
 
+    @Test
+    public void should_answer_service_unavailable_when_worker_queue_is_full() throws Exception {
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) throws Exception {
+                Thread.sleep(1000);
+                return "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+            }
+        });
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.minWorkers = 1;
+        config.maxWorkers = 1;
+        config.acceptQueue = 1;
+        NanoProxy nanoProxy = new NanoProxy(1024, config);
+        String request = "GET http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\nConnection: close\r\n\r\n";
+        // One connection holds the only worker, the next one fills the queue
+        Socket busy = new Socket("127.0.0.1", 1024);
+        busy.getOutputStream().write(request.getBytes());
+        Thread.sleep(200);
+        Socket queued = new Socket("127.0.0.1", 1024);
+        queued.getOutputStream().write(request.getBytes());
+        Thread.sleep(200);
+        // Refused as soon as it is accepted; a request still unread when
+        // the proxy closes would turn the close into a reset
+        Socket refusedClient = new Socket("127.0.0.1", 1024);
+        refusedClient.setSoTimeout(10000);
+        String refused = new BufferedReader(new InputStreamReader(refusedClient.getInputStream())).readLine();
+        refusedClient.close();
+        busy.setSoTimeout(10000);
+        queued.setSoTimeout(10000);
+        String first = receive(busy);
+        String second = receive(queued);
+        nanoProxy.stop();
+        upstream.close();
+        assertThat(refused.split(" ")[1], is("503"));
+        assertThat(first.endsWith("\r\n\r\nok"), is(true));
+        assertThat(second.endsWith("\r\n\r\nok"), is(true));
+    }
+
+    @Test
+    public void should_refuse_at_once_with_no_accept_queue() throws Exception {
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) throws Exception {
+                Thread.sleep(1000);
+                return "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+            }
+        });
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.minWorkers = 1;
+        config.maxWorkers = 1;
+        config.acceptQueue = 0;
+        NanoProxy nanoProxy = new NanoProxy(1024, config);
+        Socket busy = new Socket("127.0.0.1", 1024);
+        busy.getOutputStream().write(("GET http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\n"
+                + "Connection: close\r\n\r\n").getBytes());
+        Thread.sleep(200);
+        Socket refusedClient = new Socket("127.0.0.1", 1024);
+        refusedClient.setSoTimeout(10000);
+        String refused = new BufferedReader(new InputStreamReader(refusedClient.getInputStream())).readLine();
+        refusedClient.close();
+        busy.setSoTimeout(10000);
+        String first = receive(busy);
+        nanoProxy.stop();
+        upstream.close();
+        assertThat(refused.split(" ")[1], is("503"));
+        assertThat(first.endsWith("\r\n\r\nok"), is(true));
+    }
+
     @Test
     public void should_get_response_from_post_method() throws Exception {
         HttpServer server = httpserver(12306);
@@ -92,4 +292,998 @@ public class NanoUnitTest {
             }
         });
     }
+
+    @Test
+    public void should_proxy_get_request_through_nio_engine() throws Exception {
+        HttpServer server = httpserver(12306);
+        server.request(by(method("GET"))).response("get");
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                NanoProxy.Config config = new NanoProxy.Config();
+                config.engine = NanoProxy.ENGINE_NIO;
+                NanoProxy nanoProxy = new NanoProxy(1024, config);
+                HttpURLConnection proxyConnection = (HttpURLConnection) url.openConnection(proxy);
+                proxyConnection.setRequestMethod("GET");
+                String actual = new BufferedReader(new InputStreamReader(proxyConnection.getInputStream(), "UTF-8")).readLine();
+                nanoProxy.stop();
+                assertThat(actual, is("get"));
+            }
+        });
+    }
+
+    @Test
+    public void should_relay_bare_lf_heads_and_chunked_bodies_through_nio_engine() throws Exception {
+        final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) {
+                seen.add(head.substring(0, head.indexOf("\r\n")));
+                return "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+            }
+        });
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.engine = NanoProxy.ENGINE_NIO;
+        NanoProxy nanoProxy = new NanoProxy(1024, config);
+        String lf = send("GET http://" + target + "/lf HTTP/1.1\nHost: " + target + "\n\n");
+        String chunked = send("POST http://" + target + "/chunked HTTP/1.1\r\nHost: " + target + "\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n0\r\n\r\n");
+        String old = send("POST http://" + target + "/old HTTP/1.0\r\nHost: " + target + "\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n0\r\n\r\n");
+        nanoProxy.stop();
+        upstream.close();
+        assertThat(lf.startsWith("HTTP/1.1 200 OK\r\n"), is(true));
+        assertThat(chunked.endsWith("\r\n\r\nhello"), is(true));
+        assertThat(old.startsWith("HTTP/1.0 400 "), is(true));
+        assertThat(seen, is(Arrays.asList("GET /lf HTTP/1.1", "POST /chunked HTTP/1.1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_refuse_to_start_nio_engine_with_a_cache() throws Exception {
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.engine = NanoProxy.ENGINE_NIO;
+        config.cacheMaxBytes = 1024 * 1024;
+        new NanoProxy(1024, config);
+    }
+
+    @Test
+    public void should_reuse_upstream_connection_for_repeated_requests() throws Exception {
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) {
+                return "HTTP/1.1 200 OK\r\nContent-Length: 3\r\n\r\nget";
+            }
+        });
+
+        NanoProxy nanoProxy = new NanoProxy(1024);
+        URL keepAliveUrl = new URL("http://localhost:" + upstream.getLocalPort() + "/");
+        for (int i = 0; i < 3; i++) {
+            HttpURLConnection proxyConnection = (HttpURLConnection) keepAliveUrl.openConnection(proxy);
+            String actual = new BufferedReader(new InputStreamReader(proxyConnection.getInputStream(), "UTF-8")).readLine();
+            assertThat(actual, is("get"));
+        }
+        long misses = nanoProxy.getUpstreamPoolMisses();
+        long hits = nanoProxy.getUpstreamPoolHits();
+        nanoProxy.stop();
+        upstream.close();
+        assertThat(misses, is(1L));
+        assertThat(hits, is(2L));
+    }
+
+    @Test
+    public void should_stream_request_bodies_upstream() throws Exception {
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) {
+                return "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+            }
+        });
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+        NanoProxy nanoProxy = new NanoProxy(1024);
+        String sized = send("POST http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\n"
+                + "Content-Length: 11\r\nConnection: close\r\n\r\nhello world");
+        String chunked = send("POST http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\n"
+                + "Transfer-Encoding: chunked\r\nConnection: close\r\n\r\n5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n");
+        nanoProxy.stop();
+        upstream.close();
+        assertThat(sized.endsWith("\r\n\r\nhello world"), is(true));
+        assertThat(chunked.endsWith("\r\n\r\nhello world"), is(true));
+    }
+
+    @Test
+    public void should_skip_unread_request_body_before_pipelined_request() throws Exception {
+        final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) {
+                seen.add(head.substring(0, head.indexOf(' ', 4)));
+                return "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+            }
+        });
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+        NanoProxy nanoProxy = new NanoProxy(1024);
+        // Whatever of the first body nobody reads looks like a request itself
+        String smuggled = "GET http://" + target + "/smuggled HTTP/1.1\r\nHost: " + target + "\r\n\r\n";
+        String all = send("GET http://" + target + "/first HTTP/1.1\r\nHost: " + target + "\r\n"
+                + "Content-Length: " + smuggled.length() + "\r\n\r\n" + smuggled
+                + "GET http://" + target + "/second HTTP/1.1\r\nHost: " + target + "\r\nConnection: close\r\n\r\n");
+        nanoProxy.stop();
+        upstream.close();
+        assertThat(all.split("\r\n\r\nok").length, is(2));
+        assertThat(all.endsWith("\r\n\r\nok"), is(true));
+        assertThat(seen, is(Arrays.asList("GET /first", "GET /second")));
+    }
+
+    @Test
+    public void should_answer_pipelined_requests_on_one_connection() throws Exception {
+        HttpServer server = httpserver(12306);
+        server.request(by(method("GET"))).response("get");
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                NanoProxy nanoProxy = new NanoProxy(1024);
+                Socket client = new Socket("127.0.0.1", 1024);
+                client.getOutputStream().write(("GET http://localhost:12306/a HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                        "GET http://localhost:12306/b HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes());
+                BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                StringBuilder all = new StringBuilder();
+                String line;
+                while ((line = in.readLine()) != null)
+                    all.append(line).append('\n');
+                client.close();
+                nanoProxy.stop();
+
+                String[] responses = all.toString().split("HTTP/1.1 200 OK");
+                assertThat(responses.length, is(3));
+                assertThat(responses[1].contains("Connection: keep-alive"), is(true));
+                assertThat(responses[2].contains("Connection: close"), is(true));
+            }
+        });
+    }
+
+    @Test
+    public void should_serve_fresh_response_from_cache() throws Exception {
+        HttpServer server = httpserver(12306);
+        server.response(seq("first", "second"), header("Cache-Control", "max-age=60"));
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                NanoProxy.Config config = new NanoProxy.Config();
+                config.cacheMaxBytes = 1024 * 1024;
+                NanoProxy nanoProxy = new NanoProxy(1024, config);
+                String[] actual = new String[2];
+                for (int i = 0; i < 2; i++) {
+                    HttpURLConnection proxyConnection = (HttpURLConnection) url.openConnection(proxy);
+                    actual[i] = new BufferedReader(new InputStreamReader(proxyConnection.getInputStream(), "UTF-8")).readLine();
+                }
+                long hits = nanoProxy.getCacheHits();
+                nanoProxy.stop();
+                assertThat(actual[0], is("first"));
+                assertThat(actual[1], is("first"));
+                assertThat(hits, is(1L));
+            }
+        });
+    }
+
+    @Test
+    public void should_share_one_upstream_fetch_between_concurrent_gets() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) throws Exception {
+                fetches.incrementAndGet();
+                Thread.sleep(500);
+                return "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 6\r\n\r\nshared";
+            }
+        });
+        final String target = "127.0.0.1:" + upstream.getLocalPort();
+        NanoProxy nanoProxy = new NanoProxy(1024);
+        final String[] responses = new String[5];
+        Thread[] clients = new Thread[responses.length];
+        for (int i = 0; i < clients.length; i++) {
+            final int c = i;
+            clients[i] = new Thread() {
+                public void run() {
+                    try {
+                        responses[c] = send("GET http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\n"
+                                + "Connection: close\r\n\r\n");
+                    } catch (IOException e) {
+                    }
+                }
+            };
+            clients[i].start();
+        }
+        for (Thread client : clients)
+            client.join();
+        long coalesced = nanoProxy.getCoalescedRequests();
+        nanoProxy.stop();
+        upstream.close();
+        for (String response : responses)
+            assertThat(response.endsWith("\r\n\r\nshared"), is(true));
+        assertThat(fetches.get(), is(1));
+        assertThat(coalesced, is(4L));
+    }
+
+    @Test
+    public void should_fetch_alone_when_leader_is_slow_or_unshareable() throws Exception {
+        final AtomicInteger slow = new AtomicInteger();
+        final AtomicInteger unshareable = new AtomicInteger();
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) throws Exception {
+                if (head.startsWith("GET /slow ") && slow.getAndIncrement() == 0)
+                    Thread.sleep(2000);
+                if (head.startsWith("GET /private ")) {
+                    unshareable.incrementAndGet();
+                    Thread.sleep(200);
+                    return "HTTP/1.1 200 OK\r\nCache-Control: private\r\nContent-Length: 2\r\n\r\nok";
+                }
+                return "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 2\r\n\r\nok";
+            }
+        });
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.coalesceTimeoutMillis = 500;
+        NanoProxy nanoProxy = new NanoProxy(1024, config);
+        long[] elapsed = new long[2];
+        String[] responses = new String[4];
+        String[] paths = {"/slow", "/private"};
+        for (int i = 0; i < paths.length; i++) {
+            final String request = "GET http://" + target + paths[i] + " HTTP/1.1\r\nHost: " + target + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            final String[] leader = new String[1];
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        leader[0] = send(request);
+                    } catch (IOException e) {
+                    }
+                }
+            };
+            t.start();
+            Thread.sleep(100);
+            long started = System.currentTimeMillis();
+            responses[2 * i + 1] = send(request);
+            elapsed[i] = System.currentTimeMillis() - started;
+            t.join();
+            responses[2 * i] = leader[0];
+        }
+        long coalesced = nanoProxy.getCoalescedRequests();
+        nanoProxy.stop();
+        upstream.close();
+        for (String response : responses)
+            assertThat(response.endsWith("\r\n\r\nok"), is(true));
+        // The follower gave up on the slow leader long before it answered
+        assertThat(elapsed[0] < 1500, is(true));
+        assertThat(slow.get(), is(2));
+        assertThat(unshareable.get(), is(2));
+        assertThat(coalesced, is(0L));
+    }
+
+    @Test
+    public void should_not_share_replies_between_clients_with_different_cookies() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) throws Exception {
+                fetches.incrementAndGet();
+                Thread.sleep(500);
+                String user = head.substring(head.indexOf("Cookie: user=") + 13, head.indexOf("Cookie: user=") + 14);
+                return "HTTP/1.1 200 OK\r\nContent-Length: 6\r\n\r\nuser=" + user;
+            }
+        });
+        final String target = "127.0.0.1:" + upstream.getLocalPort();
+        NanoProxy nanoProxy = new NanoProxy(1024);
+        final String[] responses = new String[2];
+        Thread[] clients = new Thread[responses.length];
+        for (int i = 0; i < clients.length; i++) {
+            final int c = i;
+            clients[i] = new Thread() {
+                public void run() {
+                    try {
+                        responses[c] = send("GET http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\n"
+                                + "Cookie: user=" + c + "\r\nConnection: close\r\n\r\n");
+                    } catch (IOException e) {
+                    }
+                }
+            };
+            clients[i].start();
+        }
+        for (Thread client : clients)
+            client.join();
+        long coalesced = nanoProxy.getCoalescedRequests();
+        nanoProxy.stop();
+        upstream.close();
+        assertThat(responses[0].endsWith("\r\n\r\nuser=0"), is(true));
+        assertThat(responses[1].endsWith("\r\n\r\nuser=1"), is(true));
+        assertThat(fetches.get(), is(2));
+        assertThat(coalesced, is(0L));
+    }
+
+    @Test
+    public void should_serve_from_disk_cache_across_restarts() throws Exception {
+        HttpServer server = httpserver(12306);
+        server.response(seq("first", "second"), header("Cache-Control", "max-age=60"));
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                File dir = File.createTempFile("nanoproxy", "cache");
+                dir.delete();
+                NanoProxy.Config config = new NanoProxy.Config();
+                config.diskCacheDir = dir;
+
+                NanoProxy nanoProxy = new NanoProxy(1024, config);
+                HttpURLConnection proxyConnection = (HttpURLConnection) url.openConnection(proxy);
+                String first = new BufferedReader(new InputStreamReader(proxyConnection.getInputStream(), "UTF-8")).readLine();
+                nanoProxy.stop();
+
+                nanoProxy = new NanoProxy(1024, config);
+                proxyConnection = (HttpURLConnection) url.openConnection(proxy);
+                String second = new BufferedReader(new InputStreamReader(proxyConnection.getInputStream(), "UTF-8")).readLine();
+                long hits = nanoProxy.getDiskCacheHits();
+                nanoProxy.stop();
+
+                assertThat(first, is("first"));
+                assertThat(second, is("first"));
+                assertThat(hits, is(1L));
+            }
+        });
+    }
+
+    @Test
+    public void should_keep_disk_journal_readable_after_an_entry_too_big_to_record() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) {
+                if (head.startsWith("GET /big ")) {
+                    char[] big = new char[70000];
+                    Arrays.fill(big, 'x');
+                    return "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nX-Big: " + new String(big) + "\r\n"
+                            + "Content-Length: 3\r\n\r\nbig";
+                }
+                fetches.incrementAndGet();
+                return "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 5\r\n\r\nsmall";
+            }
+        });
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+        File dir = File.createTempFile("nanoproxy", "cache");
+        dir.delete();
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.diskCacheDir = dir;
+        NanoProxy nanoProxy = new NanoProxy(1024, config);
+        String big = send("GET http://" + target + "/big HTTP/1.1\r\nHost: " + target + "\r\nConnection: close\r\n\r\n");
+        String small = "GET http://" + target + "/small HTTP/1.1\r\nHost: " + target + "\r\nConnection: close\r\n\r\n";
+        String first = send(small);
+        nanoProxy.stop();
+
+        nanoProxy = new NanoProxy(1024, config);
+        String second = send(small);
+        long hits = nanoProxy.getDiskCacheHits();
+        nanoProxy.stop();
+        upstream.close();
+        assertThat(big.endsWith("\r\n\r\nbig"), is(true));
+        assertThat(first.endsWith("\r\n\r\nsmall"), is(true));
+        assertThat(second.endsWith("\r\n\r\nsmall"), is(true));
+        assertThat(fetches.get(), is(1));
+        assertThat(hits, is(1L));
+    }
+
+    @Test
+    public void should_forward_query_string_to_upstream() throws Exception {
+        HttpServer server = httpserver(12306);
+        server.request(eq(query("q"), "nano proxy")).response("found");
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                NanoProxy nanoProxy = new NanoProxy(1024);
+                URL search = new URL("http://localhost:12306/search?q=nano%20proxy");
+                HttpURLConnection proxyConnection = (HttpURLConnection) search.openConnection(proxy);
+                String actual = new BufferedReader(new InputStreamReader(proxyConnection.getInputStream(), "UTF-8")).readLine();
+                nanoProxy.stop();
+                assertThat(actual, is("found"));
+            }
+        });
+    }
+
+    @Test
+    public void should_relay_head_reply_framing_as_it_came() throws Exception {
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) {
+                if (head.startsWith("HEAD /chunked "))
+                    return "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n";
+                return "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n\r\n";
+            }
+        });
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+        NanoProxy nanoProxy = new NanoProxy(1024);
+        String chunked = send("HEAD http://" + target + "/chunked HTTP/1.1\r\nHost: " + target + "\r\n"
+                + "Connection: close\r\n\r\n");
+        String unsized = send("HEAD http://" + target + "/unsized HTTP/1.1\r\nHost: " + target + "\r\n"
+                + "Connection: close\r\n\r\n");
+        nanoProxy.stop();
+        upstream.close();
+        assertThat(chunked.startsWith("HTTP/1.1 200 OK"), is(true));
+        assertThat(chunked.contains("\r\nTransfer-Encoding: chunked\r\n"), is(true));
+        assertThat(chunked.contains("Content-Length"), is(false));
+        assertThat(unsized.startsWith("HTTP/1.1 200 OK"), is(true));
+        assertThat(unsized.contains("Content-Length"), is(false));
+    }
+
+    @Test
+    public void should_pass_method_and_headers_through_both_ways() throws Exception {
+        HttpServer server = httpserver(12306);
+        server.request(and(by(method("PUT")), eq(header("X-Token"), "secret")))
+                .response(status(201), header("ETag", "\"v1\""), with("stored"));
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                NanoProxy nanoProxy = new NanoProxy(1024);
+                HttpURLConnection proxyConnection = (HttpURLConnection) url.openConnection(proxy);
+                proxyConnection.setRequestMethod("PUT");
+                proxyConnection.setRequestProperty("X-Token", "secret");
+                proxyConnection.setDoOutput(true);
+                proxyConnection.getOutputStream().write("payload".getBytes());
+                int code = proxyConnection.getResponseCode();
+                String etag = proxyConnection.getHeaderField("ETag");
+                String actual = new BufferedReader(new InputStreamReader(proxyConnection.getInputStream(), "UTF-8")).readLine();
+                nanoProxy.stop();
+                assertThat(code, is(201));
+                assertThat(etag, is("\"v1\""));
+                assertThat(actual, is("stored"));
+            }
+        });
+    }
+
+    @Test
+    public void should_revalidate_stale_cache_entry_and_answer_conditional_get() throws Exception {
+        HttpServer server = httpserver(12306);
+        server.request(eq(header("If-None-Match"), "\"v1\"")).response(status(304));
+        server.response(header("ETag", "\"v1\""), header("Cache-Control", "max-age=1"), with("fresh"));
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                NanoProxy.Config config = new NanoProxy.Config();
+                config.cacheMaxBytes = 1024 * 1024;
+                NanoProxy nanoProxy = new NanoProxy(1024, config);
+                URL asset = new URL("http://localhost:12306/asset");
+                HttpURLConnection first = (HttpURLConnection) asset.openConnection(proxy);
+                String fetched = new BufferedReader(new InputStreamReader(first.getInputStream(), "UTF-8")).readLine();
+                Thread.sleep(1100);
+                HttpURLConnection second = (HttpURLConnection) asset.openConnection(proxy);
+                String revalidated = new BufferedReader(new InputStreamReader(second.getInputStream(), "UTF-8")).readLine();
+                HttpURLConnection conditional = (HttpURLConnection) asset.openConnection(proxy);
+                conditional.setRequestProperty("If-None-Match", "\"v1\"");
+                int code = conditional.getResponseCode();
+                long revalidations = nanoProxy.getCacheRevalidations();
+                nanoProxy.stop();
+                assertThat(fetched, is("fresh"));
+                assertThat(revalidated, is("fresh"));
+                assertThat(revalidations, is(1L));
+                assertThat(code, is(304));
+            }
+        });
+    }
+
+    @Test
+    public void should_gzip_text_response_for_client_accepting_it() throws Exception {
+        final StringBuilder page = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            page.append("nano proxy ");
+        HttpServer server = httpserver(12306);
+        server.response(page.toString());
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                NanoProxy.Config config = new NanoProxy.Config();
+                config.compressResponses = true;
+                NanoProxy nanoProxy = new NanoProxy(1024, config);
+                HttpURLConnection proxyConnection = (HttpURLConnection) url.openConnection(proxy);
+                proxyConnection.setRequestProperty("Accept-Encoding", "gzip");
+                String encoding = proxyConnection.getHeaderField("Content-Encoding");
+                String actual = new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(proxyConnection.getInputStream()), "UTF-8")).readLine();
+                nanoProxy.stop();
+                assertThat(encoding, is("gzip"));
+                assertThat(actual, is(page.toString()));
+            }
+        });
+    }
+
+    @Test
+    public void should_spread_reverse_proxy_requests_over_backends() throws Exception {
+        HttpServer server = httpserver(12306);
+        server.response("moco");
+        final ServerSocket backend = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) {
+                return "HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nstub";
+            }
+        });
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                NanoProxy.Config config = new NanoProxy.Config();
+                config.backends = new HashMap<String, String[]>();
+                config.backends.put("app.test", new String[]{"127.0.0.1:12306", "127.0.0.1:" + backend.getLocalPort()});
+                config.balancer = NanoProxy.BALANCE_ROUND_ROBIN;
+                NanoProxy nanoProxy = new NanoProxy(1024, config);
+                Set<String> answeredBy = new HashSet<String>();
+                for (int i = 0; i < 4; i++) {
+                    Socket client = new Socket("127.0.0.1", 1024);
+                    client.getOutputStream().write("GET / HTTP/1.1\r\nHost: app.test\r\nConnection: close\r\n\r\n".getBytes());
+                    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                    String line, last = null;
+                    while ((line = in.readLine()) != null)
+                        last = line;
+                    client.close();
+                    answeredBy.add(last);
+                }
+                nanoProxy.stop();
+                backend.close();
+                assertThat(answeredBy, is((Set<String>) new HashSet<String>(Arrays.asList("moco", "stub"))));
+            }
+        });
+    }
+
+    @Test
+    public void should_pass_metrics_path_to_backend_named_by_host() throws Exception {
+        ServerSocket backend = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) {
+                return "HTTP/1.1 200 OK\r\nContent-Length: 15\r\n\r\nbackend metrics";
+            }
+        });
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.backends = new HashMap<String, String[]>();
+        config.backends.put("app.test", new String[]{"127.0.0.1:" + backend.getLocalPort()});
+        NanoProxy nanoProxy = new NanoProxy(1024, config);
+        String backends = send("GET /metrics HTTP/1.1\r\nHost: app.test\r\nConnection: close\r\n\r\n");
+        String own = send("GET /metrics HTTP/1.1\r\nHost: 127.0.0.1:1024\r\nConnection: close\r\n\r\n");
+        nanoProxy.stop();
+        backend.close();
+        assertThat(backends.endsWith("\r\n\r\nbackend metrics"), is(true));
+        assertThat(own.contains("nanoproxy_requests_total"), is(true));
+    }
+
+    @Test
+    public void should_answer_gateway_timeout_when_upstream_stalls() throws Exception {
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) throws Exception {
+                Thread.sleep(10000);
+                return "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+            }
+        });
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+
+        for (String engine : new String[]{NanoProxy.ENGINE_BLOCKING, NanoProxy.ENGINE_NIO}) {
+            NanoProxy.Config config = new NanoProxy.Config();
+            config.engine = engine;
+            config.upstreamFirstByteTimeoutMillis = 200;
+            config.upstreamRetries = 1;
+            NanoProxy nanoProxy = new NanoProxy(1024, config);
+            long started = System.currentTimeMillis();
+            Socket client = new Socket("127.0.0.1", 1024);
+            client.getOutputStream().write(("GET http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes());
+            String status = new BufferedReader(new InputStreamReader(client.getInputStream())).readLine();
+            long elapsed = System.currentTimeMillis() - started;
+            client.close();
+            nanoProxy.stop();
+            assertThat(engine, status.substring(9), is("504 Gateway Timeout "));
+            assertThat(engine, elapsed < 5000, is(true));
+        }
+        upstream.close();
+    }
+
+    @Test
+    public void should_answer_gateway_timeout_while_waiting_for_a_pooled_connection() throws Exception {
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) {
+                return "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+            }
+        });
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.upstreamMaxPerHost = 1;
+        config.upstreamTotalTimeoutMillis = 300;
+        config.upstreamRetries = 0;
+        NanoProxy nanoProxy = new NanoProxy(1024, config);
+        // A body that stops halfway keeps the only connection to the host
+        // lent out, whatever the deadline of its own request
+        Socket holder = new Socket("127.0.0.1", 1024);
+        holder.getOutputStream().write(("POST http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\n"
+                + "Content-Length: 10\r\n\r\nhello").getBytes());
+        Thread.sleep(200);
+        long started = System.currentTimeMillis();
+        String waited = send("GET http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\n"
+                + "Connection: close\r\n\r\n");
+        long elapsed = System.currentTimeMillis() - started;
+        holder.close();
+        nanoProxy.stop();
+        upstream.close();
+        assertThat(waited.startsWith("HTTP/1.1 504 "), is(true));
+        assertThat(elapsed < 1500, is(true));
+    }
+
+    @Test
+    public void should_finish_requests_in_flight_when_draining() throws Exception {
+        assumeTrue(hasReusePort());
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) throws Exception {
+                Thread.sleep(300);
+                return "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+            }
+        });
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.reusePort = true;
+        final NanoProxy nanoProxy = new NanoProxy(1024, config);
+        NanoProxy successor = new NanoProxy(1024, config);
+        byte[] request = ("GET http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes();
+
+        Socket idle = new Socket("127.0.0.1", 1024);
+        Socket busy = new Socket("127.0.0.1", 1024);
+        // Whichever instance the kernel handed them to, both are drained
+        idle.getOutputStream().write(request);
+        BufferedReader idleIn = new BufferedReader(new InputStreamReader(idle.getInputStream()));
+        while (idleIn.readLine().length() > 0)
+            ;
+        idleIn.read(new char[2]);
+        busy.getOutputStream().write(request);
+        Thread.sleep(100);
+
+        final boolean[] drained = new boolean[2];
+        Thread draining = new Thread() {
+            public void run() {
+                try {
+                    drained[0] = nanoProxy.drain(5000);
+                } catch (Exception e) {
+                }
+            }
+        };
+        draining.start();
+        drained[1] = successor.drain(5000);
+        draining.join();
+
+        BufferedReader busyIn = new BufferedReader(new InputStreamReader(busy.getInputStream()));
+        String status = busyIn.readLine();
+        List<String> headers = new ArrayList<String>();
+        String line;
+        while ((line = busyIn.readLine()) != null && line.length() > 0)
+            headers.add(line);
+        int idleEnd = idleIn.read();
+        idle.close();
+        busy.close();
+        upstream.close();
+        assertThat(status, is("HTTP/1.1 200 OK "));
+        assertThat(headers.contains("Connection: close"), is(true));
+        assertThat(idleEnd, is(-1));
+        assertThat(drained[0] && drained[1], is(true));
+    }
+
+    private static boolean hasReusePort() {
+        try {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+                Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+                ServerSocketChannel.class.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class)
+                        .invoke(channel, option, Boolean.TRUE);
+                return true;
+            } finally {
+                channel.close();
+            }
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void should_answer_too_many_requests_once_client_exceeds_its_rate() throws Exception {
+        HttpServer server = httpserver(12306);
+        server.response("moco");
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                NanoProxy.Config config = new NanoProxy.Config();
+                config.rateLimitPerSecond = 0.1;
+                config.rateLimitBurst = 2;
+                NanoProxy nanoProxy = new NanoProxy(1024, config);
+                int[] codes = new int[3];
+                for (int i = 0; i < codes.length; i++) {
+                    HttpURLConnection proxyConnection = (HttpURLConnection) url.openConnection(proxy);
+                    codes[i] = proxyConnection.getResponseCode();
+                    if (codes[i] == 429)
+                        assertThat(proxyConnection.getHeaderField("Retry-After"), is("10"));
+                    proxyConnection.disconnect();
+                }
+                nanoProxy.stop();
+                assertThat(Arrays.toString(codes), is("[200, 200, 429]"));
+            }
+        });
+    }
+
+    @Test
+    public void should_serve_through_several_acceptors() throws Exception {
+        HttpServer server = httpserver(12306);
+        server.response("moco");
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                for (String engine : new String[]{NanoProxy.ENGINE_BLOCKING, NanoProxy.ENGINE_NIO}) {
+                    NanoProxy.Config config = new NanoProxy.Config();
+                    config.engine = engine;
+                    config.eventLoops = 2;
+                    config.acceptors = 4;
+                    config.acceptBacklog = 64;
+                    config.tcpKeepAlive = true;
+                    config.socketSendBufferBytes = 128 * 1024;
+                    config.socketReceiveBufferBytes = 128 * 1024;
+                    NanoProxy nanoProxy = new NanoProxy(1024, config);
+                    for (int i = 0; i < 16; i++) {
+                        Socket client = new Socket("127.0.0.1", 1024);
+                        client.getOutputStream().write("GET http://localhost:12306/ HTTP/1.1\r\nHost: localhost:12306\r\nConnection: close\r\n\r\n".getBytes());
+                        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                        String status = in.readLine();
+                        String line;
+                        while ((line = in.readLine()) != null && line.length() > 0)
+                            ;
+                        String body = in.readLine();
+                        client.close();
+                        assertThat(engine, status.split(" ")[1], is("200"));
+                        assertThat(engine, body, is("moco"));
+                    }
+                    nanoProxy.stop();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void should_give_back_every_pooled_buffer() throws Exception {
+        HttpServer server = httpserver(12306);
+        server.response("moco");
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                for (String engine : new String[]{NanoProxy.ENGINE_BLOCKING, NanoProxy.ENGINE_NIO}) {
+                    NanoProxy.Config config = new NanoProxy.Config();
+                    config.engine = engine;
+                    config.bufferLeakDetection = true;
+                    NanoProxy nanoProxy = new NanoProxy(1024, config);
+                    for (int i = 0; i < 3; i++) {
+                        Socket client = new Socket("127.0.0.1", 1024);
+                        client.getOutputStream().write("GET http://localhost:12306/ HTTP/1.1\r\nHost: localhost:12306\r\nConnection: close\r\n\r\n".getBytes());
+                        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                        while (in.readLine() != null)
+                            ;
+                        client.close();
+                    }
+                    nanoProxy.stop();
+                    for (int wait = 0; wait < 50 && nanoProxy.getLeasedBuffers() > 0; wait++)
+                        Thread.sleep(20);
+                    assertThat(engine, nanoProxy.getLeakedBuffers().size(), is(0));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void should_refuse_oversized_request_head() throws Exception {
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.maxRequestHeadBytes = 1024;
+        NanoProxy nanoProxy = new NanoProxy(1024, config);
+        Socket client = new Socket("127.0.0.1", 1024);
+        StringBuilder request = new StringBuilder("GET http://localhost:12306/ HTTP/1.1\r\nHost: localhost\r\n");
+        for (int i = 0; i < 64; i++)
+            request.append("X-Filler-").append(i).append(": 0123456789012345678901234567890123456789\r\n");
+        client.getOutputStream().write(request.append("\r\n").toString().getBytes());
+        String status = new BufferedReader(new InputStreamReader(client.getInputStream())).readLine();
+        client.close();
+        nanoProxy.stop();
+        assertThat(status, is("HTTP/1.1 431 Request Header Fields Too Large "));
+    }
+
+    @Test
+    public void should_serve_metrics_on_admin_path() throws Exception {
+        HttpServer server = httpserver(12306);
+        server.response("foo");
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                NanoProxy nanoProxy = new NanoProxy(1024);
+                HttpURLConnection proxyConnection = (HttpURLConnection) url.openConnection(proxy);
+                assertThat(proxyConnection.getResponseCode(), is(200));
+
+                HttpURLConnection metricsConnection = (HttpURLConnection) new URL("http://127.0.0.1:1024/metrics").openConnection();
+                BufferedReader in = new BufferedReader(new InputStreamReader(metricsConnection.getInputStream(), "UTF-8"));
+                StringBuilder metrics = new StringBuilder();
+                String line;
+                while ((line = in.readLine()) != null)
+                    metrics.append(line).append('\n');
+                nanoProxy.stop();
+
+                assertThat(metrics.toString().contains("nanoproxy_responses_total{code=\"200\"} 1\n"), is(true));
+                assertThat(metrics.toString().contains("nanoproxy_upstream_connect_seconds_count 1\n"), is(true));
+            }
+        });
+    }
+
+    @Test
+    public void should_proxy_get_request_on_virtual_threads() throws Exception {
+        assumeTrue(hasVirtualThreads());
+        HttpServer server = httpserver(12306);
+        server.request(by(method("GET"))).response("get");
+
+        running(server, new Runnable() {
+            @Override
+            public void run() throws Exception {
+                NanoProxy.Config config = new NanoProxy.Config();
+                config.engine = NanoProxy.ENGINE_VIRTUAL;
+                NanoProxy nanoProxy = new NanoProxy(1024, config);
+                HttpURLConnection proxyConnection = (HttpURLConnection) url.openConnection(proxy);
+                String actual = new BufferedReader(new InputStreamReader(proxyConnection.getInputStream(), "UTF-8")).readLine();
+                nanoProxy.stop();
+                assertThat(actual, is("get"));
+            }
+        });
+    }
+
+    private static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void should_write_head_and_small_body_together() throws Exception {
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) throws Exception {
+                Thread.sleep(300);
+                return "HTTP/1.1 200 OK\r\nCache-Control: no-store\r\nContent-Length: 5\r\n\r\nhello";
+            }
+        });
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+        NanoProxy nanoProxy = new NanoProxy(1024);
+        // The client is already waiting when the reply comes through, so a
+        // head written apart from the body would wake it on its own
+        Socket client = new Socket("127.0.0.1", 1024);
+        client.setSoTimeout(10000);
+        client.getOutputStream().write(("GET http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\n"
+                + "Connection: close\r\n\r\n").getBytes());
+        byte[] buf = new byte[8192];
+        int read = client.getInputStream().read(buf);
+        client.close();
+        nanoProxy.stop();
+        upstream.close();
+        String first = new String(buf, 0, read, "ISO-8859-1");
+        assertThat(first.startsWith("HTTP/1.1 200 OK "), is(true));
+        assertThat(first.endsWith("\r\n\r\nhello"), is(true));
+    }
+
+    @Test
+    public void should_tunnel_bytes_both_ways_for_connect() throws Exception {
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) {
+                return "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+            }
+        });
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.connectPorts = new int[]{upstream.getLocalPort()};
+        NanoProxy nanoProxy = new NanoProxy(1024, config);
+        Socket client = new Socket("127.0.0.1", 1024);
+        client.getOutputStream().write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n"
+                + "POST / HTTP/1.1\r\nHost: " + target + "\r\nContent-Length: 5\r\n\r\nping\n").getBytes());
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+        String status = in.readLine();
+        String blank = in.readLine();
+        // Past the tunnel's own reply the upstream's bytes come back untouched
+        while (in.readLine().length() > 0)
+            ;
+        String echoed = in.readLine();
+        client.close();
+        nanoProxy.stop();
+        upstream.close();
+
+        assertThat(status, is("HTTP/1.1 200 Connection Established"));
+        assertThat(blank, is(""));
+        assertThat(echoed, is("ping"));
+    }
+
+    @Test
+    public void should_give_back_upstream_connection_after_bad_framing() throws Exception {
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) {
+                if (n == 0)
+                    return "HTTP/1.1 200 OK\r\nContent-Length: abc\r\n\r\n";
+                return "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+            }
+        });
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.upstreamMaxPerHost = 1;
+        config.upstreamRetries = 0;
+        NanoProxy nanoProxy = new NanoProxy(1024, config);
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+        String request = "GET http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\nConnection: close\r\n\r\n";
+        String bad = send(request);
+        long started = System.currentTimeMillis();
+        String good = send(request);
+        long elapsed = System.currentTimeMillis() - started;
+        nanoProxy.stop();
+        upstream.close();
+        assertThat(bad.startsWith("HTTP/1.1 500 "), is(true));
+        assertThat(good.endsWith("\r\n\r\nok"), is(true));
+        assertThat(elapsed < 5000, is(true));
+    }
+
+    @Test
+    public void should_give_up_waiting_for_a_busy_upstream_host() throws Exception {
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) throws Exception {
+                if (head.startsWith("GET /slow "))
+                    Thread.sleep(2000);
+                return "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+            }
+        });
+        final String target = "127.0.0.1:" + upstream.getLocalPort();
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.upstreamMaxPerHost = 1;
+        config.upstreamAcquireTimeoutMillis = 300;
+        config.upstreamRetries = 0;
+        NanoProxy nanoProxy = new NanoProxy(1024, config);
+        final String[] slow = new String[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    slow[0] = send("GET http://" + target + "/slow HTTP/1.1\r\nHost: " + target + "\r\n"
+                            + "Connection: close\r\n\r\n");
+                } catch (IOException e) {
+                }
+            }
+        };
+        t.start();
+        Thread.sleep(200);
+        long started = System.currentTimeMillis();
+        String refused = send("GET http://" + target + "/fast HTTP/1.1\r\nHost: " + target + "\r\n"
+                + "Connection: close\r\n\r\n");
+        long elapsed = System.currentTimeMillis() - started;
+        t.join();
+        nanoProxy.stop();
+        upstream.close();
+        assertThat(slow[0].endsWith("\r\n\r\nok"), is(true));
+        assertThat(refused.startsWith("HTTP/1.1 500 "), is(true));
+        assertThat(elapsed < 1500, is(true));
+    }
+
+    @Test
+    public void should_answer_bad_request_for_malformed_chunked_body() throws Exception {
+        ServerSocket upstream = upstream(0, new Replies() {
+            public String reply(int n, String head, String body) {
+                return "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+            }
+        });
+        NanoProxy.Config config = new NanoProxy.Config();
+        config.upstreamMaxPerHost = 1;
+        NanoProxy nanoProxy = new NanoProxy(1024, config);
+        String target = "127.0.0.1:" + upstream.getLocalPort();
+        String bad = send("POST http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\nzz\r\nhello\r\n0\r\n\r\n");
+        long started = System.currentTimeMillis();
+        String good = send("GET http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\nConnection: close\r\n\r\n");
+        long elapsed = System.currentTimeMillis() - started;
+        nanoProxy.stop();
+        upstream.close();
+        assertThat(bad.startsWith("HTTP/1.1 400 "), is(true));
+        assertThat(good.endsWith("\r\n\r\nok"), is(true));
+        assertThat(elapsed < 5000, is(true));
+    }
 }